@@ -49,6 +49,8 @@ CREATE TABLE `conversation`  (
   `character_id` bigint NOT NULL COMMENT 'AI角色ID',
   `is_pinned` tinyint(1) NULL DEFAULT 0 COMMENT '是否置顶（0:否, 1:是）',
   `last_message_time` datetime NULL DEFAULT CURRENT_TIMESTAMP COMMENT '最后一条消息时间',
+  `last_message` varchar(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_0900_ai_ci NULL DEFAULT NULL COMMENT '最后一条消息预览',
+  `last_message_sender_type` enum('user','ai') CHARACTER SET utf8mb4 COLLATE utf8mb4_0900_ai_ci NULL DEFAULT NULL COMMENT '最后一条消息发送者类型',
   `created_at` datetime NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `updated_at` datetime NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
   PRIMARY KEY (`id`) USING BTREE,
@@ -58,6 +60,19 @@ CREATE TABLE `conversation`  (
   CONSTRAINT `fk_conversation_user` FOREIGN KEY (`user_id`) REFERENCES `user` (`id`) ON DELETE CASCADE ON UPDATE RESTRICT
 ) ENGINE = InnoDB AUTO_INCREMENT = 8 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_0900_ai_ci COMMENT = '会话表' ROW_FORMAT = Dynamic;
 
+-- ----------------------------
+-- Table structure for conversation_summary
+-- ----------------------------
+DROP TABLE IF EXISTS `conversation_summary`;
+CREATE TABLE `conversation_summary`  (
+  `conversation_id` bigint NOT NULL COMMENT '会话ID',
+  `summary` text CHARACTER SET utf8mb4 COLLATE utf8mb4_0900_ai_ci NULL COMMENT '滚动摘要（已移出上下文窗口的历史消息）',
+  `last_message_id` bigint NOT NULL DEFAULT 0 COMMENT '已折叠进摘要的最后一条消息ID',
+  `updated_at` datetime NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  PRIMARY KEY (`conversation_id`) USING BTREE,
+  CONSTRAINT `fk_conversation_summary_conversation` FOREIGN KEY (`conversation_id`) REFERENCES `conversation` (`id`) ON DELETE CASCADE ON UPDATE RESTRICT
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_0900_ai_ci COMMENT = '会话摘要表' ROW_FORMAT = Dynamic;
+
 -- ----------------------------
 -- Table structure for message
 -- ----------------------------
@@ -68,8 +83,12 @@ CREATE TABLE `message`  (
   `sender_type` enum('user','ai') CHARACTER SET utf8mb4 COLLATE utf8mb4_0900_ai_ci NOT NULL COMMENT '发送者类型（user:用户, ai:AI）',
   `content` text CHARACTER SET utf8mb4 COLLATE utf8mb4_0900_ai_ci NULL COMMENT '消息内容',
   `created_at` datetime NULL DEFAULT CURRENT_TIMESTAMP COMMENT '发送时间',
+  `delivery_id` varchar(32) CHARACTER SET utf8mb4 COLLATE utf8mb4_0900_ai_ci NULL DEFAULT NULL COMMENT 'AI回复分段的投递ID，重复投递时去重',
+  `client_msg_id` varchar(64) CHARACTER SET utf8mb4 COLLATE utf8mb4_0900_ai_ci NULL DEFAULT NULL COMMENT '客户端消息ID，客户端重发同一消息时去重',
   PRIMARY KEY (`id`) USING BTREE,
-  INDEX `idx_conversation_id`(`conversation_id` ASC) USING BTREE,
+  UNIQUE INDEX `uk_delivery_id`(`delivery_id` ASC) USING BTREE,
+  UNIQUE INDEX `uk_conversation_client_msg`(`conversation_id` ASC, `client_msg_id` ASC) USING BTREE,
+  INDEX `idx_conversation_created_id`(`conversation_id` ASC, `created_at` ASC, `id` ASC) USING BTREE,
   INDEX `idx_sender_type`(`sender_type` ASC) USING BTREE,
   INDEX `idx_created_at`(`created_at` ASC) USING BTREE,
   CONSTRAINT `fk_message_conversation` FOREIGN KEY (`conversation_id`) REFERENCES `conversation` (`id`) ON DELETE CASCADE ON UPDATE RESTRICT
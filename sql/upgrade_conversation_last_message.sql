@@ -0,0 +1,14 @@
+-- 会话表增加最后一条消息预览，会话列表不再逐个查询最后一条消息
+ALTER TABLE `conversation`
+    ADD COLUMN `last_message` varchar(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_0900_ai_ci NULL DEFAULT NULL COMMENT '最后一条消息预览' AFTER `last_message_time`,
+    ADD COLUMN `last_message_sender_type` enum('user','ai') CHARACTER SET utf8mb4 COLLATE utf8mb4_0900_ai_ci NULL DEFAULT NULL COMMENT '最后一条消息发送者类型' AFTER `last_message`;
+
+-- 回填已有会话
+UPDATE `conversation` c
+    JOIN `message` m ON m.id = (SELECT m2.id
+                                FROM `message` m2
+                                WHERE m2.conversation_id = c.id
+                                ORDER BY m2.created_at DESC, m2.id DESC
+                                LIMIT 1)
+SET c.last_message             = LEFT(m.content, 100),
+    c.last_message_sender_type = m.sender_type;
@@ -0,0 +1,4 @@
+-- 用户消息按客户端消息ID去重：客户端未收到ACK而重发同一消息时，即使Redis中的去重记录已过期或丢失也不会重复写入
+ALTER TABLE `message`
+    ADD COLUMN `client_msg_id` varchar(64) CHARACTER SET utf8mb4 COLLATE utf8mb4_0900_ai_ci NULL DEFAULT NULL COMMENT '客户端消息ID，客户端重发同一消息时去重' AFTER `delivery_id`,
+    ADD UNIQUE INDEX `uk_conversation_client_msg`(`conversation_id` ASC, `client_msg_id` ASC) USING BTREE;
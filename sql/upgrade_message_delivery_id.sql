@@ -0,0 +1,4 @@
+-- AI回复分段按分段ID去重：分段被重复投递（节点在落库后、确认前宕机，租约到期后由其他节点重新认领）时不会重复写入
+ALTER TABLE `message`
+    ADD COLUMN `delivery_id` varchar(32) CHARACTER SET utf8mb4 COLLATE utf8mb4_0900_ai_ci NULL DEFAULT NULL COMMENT 'AI回复分段的投递ID，重复投递时去重' AFTER `created_at`,
+    ADD UNIQUE INDEX `uk_delivery_id`(`delivery_id` ASC) USING BTREE;
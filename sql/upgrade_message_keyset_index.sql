@@ -0,0 +1,5 @@
+-- 消息历史按 (created_at, id) 游标分页：用联合索引替换原 conversation_id 单列索引
+-- 新索引以 conversation_id 开头，外键约束仍可使用；在同一条语句中先加后删
+ALTER TABLE `message`
+    ADD INDEX `idx_conversation_created_id`(`conversation_id` ASC, `created_at` ASC, `id` ASC) USING BTREE,
+    DROP INDEX `idx_conversation_id`;
@@ -1,5 +1,6 @@
 package com.chatbot.common.interceptor;
 
+import com.chatbot.common.util.JwtPrincipal;
 import com.chatbot.common.util.JwtUtil;
 import com.chatbot.common.util.UserContext;
 import jakarta.annotation.Resource;
@@ -37,17 +38,14 @@ public class JwtInterceptor implements HandlerInterceptor {
             // 提取Token
             String token = authHeader.substring(tokenPrefix.length() + 1);
 
-            // 验证Token
-            if (jwtUtil.validateToken(token)) {
-                // 解析用户信息
-                Long userId = jwtUtil.getUserIdFromToken(token);
-                String username = jwtUtil.getUsernameFromToken(token);
-
+            // 验证Token并解析用户信息（一次解析，已验证的Token直接命中缓存）
+            JwtPrincipal principal = jwtUtil.authenticate(token);
+            if (principal != null) {
                 // 存入ThreadLocal
-                UserContext.setUserId(userId);
-                UserContext.setUsername(username);
+                UserContext.setUserId(principal.getUserId());
+                UserContext.setUsername(principal.getUsername());
 
-                log.debug("用户认证成功：userId={}, username={}", userId, username);
+                log.debug("用户认证成功：userId={}, username={}", principal.getUserId(), principal.getUsername());
                 return true;
             } else {
                 log.warn("Token验证失败");
@@ -0,0 +1,171 @@
+package com.chatbot.common.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AI对话相关配置
+ *
+ * @author Diamond
+ */
+@Component
+@ConfigurationProperties(prefix = "chatbot.ai")
+@Data
+public class AiProperties {
+
+    /**
+     * 是否启用流式回复（按句推送，流式调用失败时回退为阻塞调用）
+     */
+    private boolean streaming = true;
+
+    /**
+     * 防抖窗口（毫秒）：窗口内连续发送的多条消息合并为一次AI回复
+     */
+    private long debounceMs = 1500;
+
+    /**
+     * 上下文窗口配置
+     */
+    private Context context = new Context();
+
+    /**
+     * 滚动摘要配置
+     */
+    private Summary summary = new Summary();
+
+    /**
+     * LLM调用并发调度配置
+     */
+    private Dispatch dispatch = new Dispatch();
+
+    /**
+     * 回复分段发送配置
+     */
+    private Delivery delivery = new Delivery();
+
+    @Data
+    public static class Context {
+
+        /**
+         * 单轮对话的token总预算（含 System Prompt、历史消息、用户输入与输出预留）
+         */
+        private int budgetTokens = 8000;
+
+        /**
+         * 从数据库加载的候选历史消息条数上限
+         */
+        private int maxHistoryMessages = 100;
+
+        /**
+         * 窗口超出预算需要前移时，重新填充到预算的比例（留出空间让后续轮次保持前缀不变）
+         */
+        private double compactRatio = 0.6;
+    }
+
+    @Data
+    public static class Summary {
+
+        /**
+         * 是否启用滚动摘要
+         */
+        private boolean enabled = true;
+
+        /**
+         * 每隔多少轮对话折叠一次摘要
+         */
+        private int everyTurns = 10;
+
+        /**
+         * 每次调用LLM折叠的消息条数
+         */
+        private int batchMessages = 100;
+    }
+
+    @Data
+    public static class Dispatch {
+
+        /**
+         * 初始并发上限
+         */
+        private int initialLimit = 8;
+
+        /**
+         * 并发上限的下限
+         */
+        private int minLimit = 2;
+
+        /**
+         * 并发上限的上限（同时也是工作线程数上限）
+         */
+        private int maxLimit = 64;
+
+        /**
+         * 等待队列容量，队列已满时拒绝新的生成任务
+         */
+        private int queueCapacity = 500;
+
+        /**
+         * 单个用户在等待队列中的任务数上限
+         */
+        private int userQueueCapacity = 20;
+
+        /**
+         * 未单独配置权重的用户的调度权重
+         */
+        private int defaultWeight = 1;
+
+        /**
+         * 用户ID -> 调度权重（可选，用于付费等级等），权重为N的用户每轮可出队N个任务
+         */
+        private Map<Long, Integer> userWeights = new HashMap<>();
+
+        /**
+         * 后台任务（如会话摘要折叠）共用一个队列的调度权重，小于1时每隔若干轮才出队一个
+         */
+        private double backgroundWeight = 0.25;
+
+        /**
+         * 单次生成耗时超过该值（毫秒）视为服务端过载，按比例收缩并发上限
+         */
+        private long latencyThresholdMs = 30_000;
+
+        /**
+         * 过载时并发上限的收缩比例
+         */
+        private double backoffRatio = 0.9;
+    }
+
+    @Data
+    public static class Delivery {
+
+        /**
+         * 本节点等待发送的分段总数上限，超出时丢弃新分段
+         */
+        private int maxPendingSegments = 200_000;
+
+        /**
+         * 轮询Redis认领到期分段的间隔（毫秒）；本节点入队的分段另有精确唤醒，轮询用于兜底与接管其他节点的分段
+         */
+        private long pollIntervalMs = 200;
+
+        /**
+         * 每次认领的会话数上限
+         */
+        private int claimBatch = 100;
+
+        /**
+         * 认领租约（毫秒），节点宕机时未确认的分段在租约到期后由其他节点重新发送
+         */
+        private long leaseMs = 30_000;
+
+        /**
+         * 执行落库与推送的I/O线程数
+         */
+        private int ioThreads = 8;
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.chatbot.common.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 实体缓存配置（本地一级缓存 + Redis二级缓存）
+ *
+ * @author Administrator
+ */
+@Component
+@ConfigurationProperties(prefix = "chatbot.cache")
+@Data
+public class CacheProperties {
+
+    /**
+     * 每种实体的本地缓存最大条数
+     */
+    private long localMaximumSize = 10_000;
+
+    /**
+     * 本地缓存过期时间（秒）；失效广播丢失时最多在该时长后自愈
+     */
+    private long localTtlSeconds = 60;
+
+    /**
+     * Redis缓存过期时间（秒）
+     */
+    private long redisTtlSeconds = 1800;
+}
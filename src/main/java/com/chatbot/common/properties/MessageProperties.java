@@ -0,0 +1,70 @@
+package com.chatbot.common.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 消息存储相关配置
+ *
+ * @author Administrator
+ */
+@Component
+@ConfigurationProperties(prefix = "chatbot.message")
+@Data
+public class MessageProperties {
+
+    /**
+     * 批量写入配置
+     */
+    private WriteBehind writeBehind = new WriteBehind();
+
+    /**
+     * 最近消息缓存配置
+     */
+    private RecentCache recentCache = new RecentCache();
+
+    /**
+     * 会话最后消息时间的写回间隔（毫秒），期间同一会话的多次更新合并为一次
+     */
+    private long activityFlushIntervalMs = 1000;
+
+    @Data
+    public static class WriteBehind {
+
+        /**
+         * 攒批等待时间（毫秒）：收到第一条消息后最多等待这么久再写入
+         */
+        private long flushIntervalMs = 5;
+
+        /**
+         * 单次写入的最大条数
+         */
+        private int maxBatch = 200;
+
+        /**
+         * 待写入队列容量，写满时提交方阻塞等待
+         */
+        private int queueCapacity = 10_000;
+
+        /**
+         * 提交方等待写入完成的最长时间（毫秒），超时按写入失败处理
+         */
+        private long writeTimeoutMs = 5_000;
+    }
+
+    @Data
+    public static class RecentCache {
+
+        /**
+         * 是否启用最近消息缓存；关闭后生成回复时直接查询数据库
+         */
+        private boolean enabled = true;
+
+        /**
+         * 缓存过期时间（秒），会话不活跃超过该时长后淘汰，下次生成时从数据库重新加载
+         */
+        private long ttlSeconds = 1800;
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.chatbot.common.properties;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * WebSocket推送相关配置
+ *
+ * @author Administrator
+ */
+@Component
+@ConfigurationProperties(prefix = "chatbot.websocket")
+@Data
+public class WebSocketProperties {
+
+    /**
+     * 单次发送允许的最长时间（毫秒），超过后再有消息入队时判定客户端过慢并断开；同时作为Tomcat阻塞写入的超时
+     */
+    private long sendTimeLimitMs = 10_000;
+
+    /**
+     * 每个连接待发送消息的缓冲上限（字符数），超过后断开该连接
+     */
+    private int bufferSizeLimit = 512 * 1024;
+
+    /**
+     * 执行实际网络写入的线程数，所有连接共享
+     */
+    private int writerThreads = 16;
+
+    /**
+     * 二进制子协议下合并为一帧的待发送消息上限（字符数），积压再多也分多帧写出
+     */
+    private int batchMaxChars = 64 * 1024;
+
+    /**
+     * 每个用户推送日志保留的最近条数，断线重连时最多补发这么多
+     */
+    private int outboxCapacity = 1000;
+
+    /**
+     * 推送日志过期时间（秒）
+     */
+    private long outboxTtlSeconds = 7 * 24 * 3600;
+}
@@ -0,0 +1,29 @@
+package com.chatbot.common.result;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * 封装游标分页查询结果（不统计总数）
+ * @author Administrator
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CursorResult implements Serializable {
+
+    /**
+     * 当前页数据集合（按时间正序）
+     */
+    private List<?> records;
+
+    /**
+     * 查询方向上是否还有更多数据
+     */
+    private Boolean hasMore;
+
+}
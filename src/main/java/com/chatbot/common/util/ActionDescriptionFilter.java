@@ -0,0 +1,156 @@
+package com.chatbot.common.util;
+
+/**
+ * 动作描述过滤器
+ * 单遍扫描的状态机，移除括号及其中的动作描述，并把连续空白折叠为一个空格
+ * 支持的括号：()、（）、[]、【】
+ *
+ * <p>可按任意大小的块增量输入：跨块未闭合的括号会保持状态，直到对应的右括号到达；
+ * 输入结束时仍未闭合的括号按原样保留（与此前正则替换的行为一致）。</p>
+ *
+ * <p>非线程安全，每次流式调用使用独立实例；对完整文本可直接使用 {@link #strip(String)}。</p>
+ * @author Administrator
+ */
+public class ActionDescriptionFilter {
+
+    private static final String OPEN_BRACKETS = "(（[【";
+    private static final String CLOSE_BRACKETS = ")）]】";
+
+    /**
+     * 是否保留换行：为 true 时包含换行的空白折叠为一个换行（供流式分句使用），否则折叠为空格
+     */
+    private final boolean keepLineBreaks;
+
+    /**
+     * 复用的输出缓冲区
+     */
+    private final StringBuilder output = new StringBuilder();
+
+    /**
+     * 当前未闭合括号内的内容（含左括号），输入结束仍未闭合时需要原样放回
+     */
+    private final StringBuilder pendingSpan = new StringBuilder();
+
+    /**
+     * 期待的右括号，0 表示当前不在括号内
+     */
+    private char expectedClose;
+
+    /**
+     * 是否有待输出的空白（遇到下一个可见字符时才输出，从而去掉首尾空白）
+     */
+    private boolean pendingSpace;
+
+    private boolean pendingLineBreak;
+
+    /**
+     * 是否已经输出过可见字符
+     */
+    private boolean started;
+
+    public ActionDescriptionFilter() {
+        this(false);
+    }
+
+    public ActionDescriptionFilter(boolean keepLineBreaks) {
+        this.keepLineBreaks = keepLineBreaks;
+    }
+
+    /**
+     * 过滤完整文本
+     * @param text 原始文本
+     * @return 去除动作描述并折叠空白后的文本
+     */
+    public static String strip(String text) {
+        if (text == null || text.isEmpty()) {
+            return text;
+        }
+        ActionDescriptionFilter filter = new ActionDescriptionFilter();
+        String head = filter.append(text);
+        String tail = filter.finish();
+        return tail.isEmpty() ? head : head + tail;
+    }
+
+    /**
+     * 追加一块文本
+     * @param chunk 增量文本
+     * @return 本块中可以确定输出的干净文本（可能为空串）
+     */
+    public String append(CharSequence chunk) {
+        output.setLength(0);
+        if (chunk != null) {
+            for (int i = 0; i < chunk.length(); i++) {
+                accept(chunk.charAt(i));
+            }
+        }
+        return output.toString();
+    }
+
+    /**
+     * 结束输入，输出剩余内容并重置状态
+     * @return 剩余的干净文本（可能为空串）
+     */
+    public String finish() {
+        output.setLength(0);
+        while (expectedClose != 0) {
+            // 括号直到结束都未闭合：保留左括号，其后的内容重新按规则过滤
+            String span = pendingSpan.toString();
+            expectedClose = 0;
+            pendingSpan.setLength(0);
+            emit(span.charAt(0));
+            for (int i = 1; i < span.length(); i++) {
+                accept(span.charAt(i));
+            }
+        }
+        String result = output.toString();
+        output.setLength(0);
+        pendingSpace = false;
+        pendingLineBreak = false;
+        started = false;
+        return result;
+    }
+
+    private void accept(char c) {
+        if (expectedClose != 0) {
+            if (c == expectedClose) {
+                expectedClose = 0;
+                pendingSpan.setLength(0);
+            } else {
+                pendingSpan.append(c);
+            }
+            return;
+        }
+
+        int bracketIndex = OPEN_BRACKETS.indexOf(c);
+        if (bracketIndex >= 0) {
+            expectedClose = CLOSE_BRACKETS.charAt(bracketIndex);
+            pendingSpan.append(c);
+            return;
+        }
+        emit(c);
+    }
+
+    private void emit(char c) {
+        if (isWhitespace(c)) {
+            if (started) {
+                pendingSpace = true;
+                pendingLineBreak |= c == '\n';
+            }
+            return;
+        }
+        if (pendingSpace) {
+            output.append(keepLineBreaks && pendingLineBreak ? '\n' : ' ');
+            pendingSpace = false;
+            pendingLineBreak = false;
+        }
+        output.append(c);
+        started = true;
+    }
+
+    /**
+     * 与正则 \s 的字符集保持一致
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,37 @@
+package com.chatbot.common.util;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Date;
+
+/**
+ * 通过JWT认证的用户身份
+ * @author Administrator
+ */
+@Getter
+@AllArgsConstructor
+public class JwtPrincipal {
+
+    /**
+     * 用户ID
+     */
+    private final Long userId;
+
+    /**
+     * 用户名
+     */
+    private final String username;
+
+    /**
+     * Token过期时间
+     */
+    private final Date expiration;
+
+    /**
+     * 是否已过期
+     */
+    public boolean isExpired() {
+        return !expiration.after(new Date());
+    }
+}
@@ -1,8 +1,15 @@
 package com.chatbot.common.util;
 
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.security.Keys;
+import jakarta.annotation.PostConstruct;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
@@ -10,6 +17,7 @@ import org.springframework.stereotype.Component;
 
 import javax.crypto.SecretKey;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -30,10 +38,29 @@ public class JwtUtil {
     private Long expiration;
 
     /**
-     * 生成密钥
+     * 已验证Token的缓存容量
      */
-    private SecretKey getSecretKey() {
-        return Keys.hmacShaKeyFor(secret.getBytes(StandardCharsets.UTF_8));
+    private static final int VERIFIED_CACHE_SIZE = 10_000;
+
+    private SecretKey secretKey;
+    private JwtParser parser;
+
+    /**
+     * Token摘要 -> 已验证的身份，条目在Token过期时失效
+     */
+    private final Cache<String, JwtPrincipal> verified = Caffeine.newBuilder()
+            .maximumSize(VERIFIED_CACHE_SIZE)
+            .expireAfter(Expiry.creating((String digest, JwtPrincipal principal) ->
+                    Duration.ofMillis(Math.max(0, principal.getExpiration().getTime() - System.currentTimeMillis()))))
+            .build();
+
+    /**
+     * 密钥与解析器只构建一次，解析器线程安全
+     */
+    @PostConstruct
+    public void init() {
+        this.secretKey = Keys.hmacShaKeyFor(secret.getBytes(StandardCharsets.UTF_8));
+        this.parser = Jwts.parser().verifyWith(secretKey).build();
     }
 
     /**
@@ -61,20 +88,43 @@ public class JwtUtil {
                 .claims(claims)
                 .issuedAt(now)
                 .expiration(expiryDate)
-                .signWith(getSecretKey())
+                .signWith(secretKey)
                 .compact();
     }
 
     /**
-     * 从Token中解析Claims
+     * 认证Token：验证签名与有效期并解析出用户身份，每个Token只验证一次签名
+     *
+     * <p>验证通过的身份按Token的SHA-256摘要缓存到Token过期为止，之后同一Token的请求不再重复解析与计算HMAC。</p>
+     * @return 用户身份；Token无效或已过期时返回 null
+     */
+    public JwtPrincipal authenticate(String token) {
+        if (StrUtil.isBlank(token)) {
+            return null;
+        }
+        String digest = DigestUtil.sha256Hex(token);
+        JwtPrincipal principal = verified.getIfPresent(digest);
+        if (principal != null && !principal.isExpired()) {
+            return principal;
+        }
+        Claims claims = parseToken(token);
+        if (claims == null || claims.getExpiration() == null || !claims.getExpiration().after(new Date())) {
+            return null;
+        }
+        principal = new JwtPrincipal(claims.get("userId", Long.class), claims.get("username", String.class), claims.getExpiration());
+        if (principal.getUserId() == null) {
+            return null;
+        }
+        verified.put(digest, principal);
+        return principal;
+    }
+
+    /**
+     * 从Token中解析Claims（每次都会验证签名，认证请使用 {@link #authenticate(String)}）
      */
     public Claims parseToken(String token) {
         try {
-            return Jwts.parser()
-                    .verifyWith(getSecretKey())
-                    .build()
-                    .parseSignedClaims(token)
-                    .getPayload();
+            return parser.parseSignedClaims(token).getPayload();
         } catch (Exception e) {
             log.error("解析Token失败：{}", e.getMessage());
             return null;
@@ -85,38 +135,22 @@ public class JwtUtil {
      * 从Token中获取用户ID
      */
     public Long getUserIdFromToken(String token) {
-        Claims claims = parseToken(token);
-        if (claims != null) {
-            return claims.get("userId", Long.class);
-        }
-        return null;
+        JwtPrincipal principal = authenticate(token);
+        return principal == null ? null : principal.getUserId();
     }
 
     /**
      * 从Token中获取用户名
      */
     public String getUsernameFromToken(String token) {
-        Claims claims = parseToken(token);
-        if (claims != null) {
-            return claims.get("username", String.class);
-        }
-        return null;
+        JwtPrincipal principal = authenticate(token);
+        return principal == null ? null : principal.getUsername();
     }
 
     /**
      * 验证Token是否有效
      */
     public boolean validateToken(String token) {
-        try {
-            Claims claims = parseToken(token);
-            if (claims == null) {
-                return false;
-            }
-            Date expiration = claims.getExpiration();
-            return expiration.after(new Date());
-        } catch (Exception e) {
-            log.error("验证Token失败：{}", e.getMessage());
-            return false;
-        }
+        return authenticate(token) != null;
     }
 }
@@ -0,0 +1,102 @@
+package com.chatbot.common.util;
+
+import cn.hutool.core.util.StrUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 流式分句器
+ * 逐块接收LLM输出的文本，按句子边界切出完整片段，供流式推送使用
+ *
+ * <p>输入应为已经过 {@link ActionDescriptionFilter} 过滤的文本；非线程安全，每次流式调用使用独立实例。</p>
+ * @author Administrator
+ */
+public class StreamingTextSplitter {
+
+    /**
+     * 句末标点（与 {@link TextSplitter} 保持一致，额外包含省略号与波浪号）
+     */
+    private static final String TERMINATORS = "。？！?!…～~\n";
+
+    /**
+     * 紧跟在句末标点后、应归入当前句的收尾符号
+     */
+    private static final String TRAILING = "”’\"」』";
+
+    /**
+     * 片段最小长度，过短的句子与下一句合并（避免“嗯。”单独成一条）
+     */
+    private static final int MIN_SEGMENT_LENGTH = 10;
+
+    private final StringBuilder buffer = new StringBuilder();
+
+    /**
+     * 下次扫描的起始位置（之前的内容已确认不含可切分的句子边界）
+     */
+    private int scanFrom;
+
+    /**
+     * 追加一段文本
+     * @param chunk LLM输出的增量文本
+     * @return 本次新产生的完整句子（可能为空）
+     */
+    public List<String> append(String chunk) {
+        if (chunk == null || chunk.isEmpty()) {
+            return Collections.emptyList();
+        }
+        buffer.append(chunk);
+
+        List<String> segments = new ArrayList<>();
+        int segmentStart = 0;
+        int i = scanFrom;
+        while (i < buffer.length()) {
+            char c = buffer.charAt(i);
+            if (TERMINATORS.indexOf(c) >= 0) {
+                int end = i + 1;
+                while (end < buffer.length() && isSentenceTail(buffer.charAt(end))) {
+                    end++;
+                }
+                if (end == buffer.length()) {
+                    // 后续块可能还有收尾标点，等下一块到达再决定是否切分
+                    break;
+                }
+                if (end - segmentStart >= MIN_SEGMENT_LENGTH) {
+                    addSegment(segments, buffer.substring(segmentStart, end));
+                    segmentStart = end;
+                }
+                i = end;
+                continue;
+            }
+            i++;
+        }
+
+        buffer.delete(0, segmentStart);
+        scanFrom = i - segmentStart;
+        return segments;
+    }
+
+    /**
+     * 结束输入，返回缓冲区中剩余的文本
+     * @return 剩余片段（可能为空）
+     */
+    public List<String> flush() {
+        List<String> segments = new ArrayList<>();
+        addSegment(segments, buffer.toString());
+        buffer.setLength(0);
+        scanFrom = 0;
+        return segments;
+    }
+
+    private boolean isSentenceTail(char c) {
+        return TERMINATORS.indexOf(c) >= 0 || TRAILING.indexOf(c) >= 0;
+    }
+
+    private void addSegment(List<String> segments, String text) {
+        String segment = text.trim();
+        if (StrUtil.isNotBlank(segment)) {
+            segments.add(segment);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.chatbot.common.util;
+
+/**
+ * Token数估算工具类
+ * 不依赖具体模型的分词器，按字符类别粗略估算，用于上下文预算规划
+ *
+ * <p>经验值：中日韩文字约 1 字 1 token，其余字符约 4 字符 1 token；结果偏保守。</p>
+ * @author Administrator
+ */
+public class TokenEstimator {
+
+    /**
+     * 每条消息的固定开销（角色标记、分隔符等）
+     */
+    public static final int MESSAGE_OVERHEAD_TOKENS = 4;
+
+    private static final int CHARS_PER_TOKEN = 4;
+
+    /**
+     * 估算文本的token数
+     * @param text 文本
+     * @return 估算的token数
+     */
+    public static int estimate(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int wideChars = 0;
+        int otherChars = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= '\u2E80') {
+                wideChars++;
+            } else {
+                otherChars++;
+            }
+        }
+        return wideChars + (otherChars + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+    }
+
+    /**
+     * 估算一条对话消息的token数（含固定开销）
+     * @param content 消息内容
+     * @return 估算的token数
+     */
+    public static int estimateMessage(String content) {
+        return estimate(content) + MESSAGE_OVERHEAD_TOKENS;
+    }
+}
@@ -22,6 +22,8 @@ public class WebSocketConfig implements WebSocketConfigurer {
 
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        // 处理器实现了 SubProtocolCapable，默认握手处理器据此协商 chatbot.cbor 子协议；
+        // permessage-deflate 由容器提供，客户端请求即启用
         registry.addHandler(chatWebSocketHandler, "/ws/chat")
                 // 开发阶段允许跨域
                 .setAllowedOrigins("*");
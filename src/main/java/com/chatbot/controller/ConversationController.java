@@ -1,5 +1,6 @@
 package com.chatbot.controller;
 
+import com.chatbot.common.result.PageResult;
 import com.chatbot.common.result.Result;
 import com.chatbot.model.vo.ConversationVO;
 import com.chatbot.service.ConversationService;
@@ -7,8 +8,6 @@ import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.List;
-
 /**
  * 会话管理控制器
  *
@@ -32,11 +31,12 @@ public class ConversationController {
     }
 
     /**
-     * 获取会话列表
+     * 分页获取会话列表（置顶优先，其次按最后消息时间倒序）
      */
     @GetMapping("/list")
-    public Result<List<ConversationVO>> list() {
-        return Result.ok(conversationService.list());
+    public Result<PageResult> list(@RequestParam(defaultValue = "1") int pageNum,
+                                   @RequestParam(defaultValue = "20") int pageSize) {
+        return Result.ok(conversationService.list(pageNum, pageSize));
     }
 
     /**
@@ -1,6 +1,6 @@
 package com.chatbot.controller;
 
-import com.chatbot.common.result.PageResult;
+import com.chatbot.common.result.CursorResult;
 import com.chatbot.common.result.Result;
 import com.chatbot.model.dto.SendMessageDTO;
 import com.chatbot.model.vo.MessageVO;
@@ -24,11 +24,16 @@ public class MessageController {
         return Result.ok(messageService.send(sendMessageDTO));
     }
 
+    /**
+     * 游标分页查询消息历史，结果按时间正序
+     * before/after 均不传时返回最新一页；传 before 向前翻看更早的消息，传 after 拉取更新的消息
+     */
     @GetMapping("/list")
-    public Result<PageResult> list(@RequestParam Long conversationId,
-                                   @RequestParam(defaultValue = "1") int pageNum,
-                                   @RequestParam(defaultValue = "20") int pageSize) {
-        return Result.ok(messageService.list(conversationId, pageNum, pageSize));
+    public Result<CursorResult> list(@RequestParam Long conversationId,
+                                     @RequestParam(required = false) Long before,
+                                     @RequestParam(required = false) Long after,
+                                     @RequestParam(defaultValue = "20") int limit) {
+        return Result.ok(messageService.list(conversationId, before, after, limit));
     }
 }
 
@@ -1,34 +1,90 @@
 package com.chatbot.handler;
 
+import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.chatbot.common.exception.BizException;
+import com.chatbot.common.util.JwtPrincipal;
 import com.chatbot.common.util.JwtUtil;
+import com.chatbot.model.dto.SendMessageDTO;
+import com.chatbot.model.vo.MessageVO;
+import com.chatbot.service.MessageService;
+import com.chatbot.service.core.WebSocketFrameCodec;
+import com.chatbot.service.core.WebSocketRouter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.SubProtocolCapable;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * WebSocket处理器
- * 用于处理实时消息推送，包括AI回复的分段传输、输入状态推送等
+ * 用于处理实时消息推送，包括AI回复的分段传输、输入状态推送等，也接收客户端通过连接发送的聊天消息
+ *
+ * <p>客户端帧（JSON）：</p>
+ * <ul>
+ *     <li>{"type":"PING"} —— 心跳，回复 PONG</li>
+ *     <li>{"type":"RESUME","lastSeq":N} —— 重连后补发序号N之后的推送</li>
+ *     <li>{"type":"SEND","clientMsgId":"..","conversationId":..,"content":".."} —— 发送消息，
+ *     成功回复 {"type":"ACK","clientMsgId":..,"messageId":..}，失败回复 {"type":"NACK","clientMsgId":..,"error":..}，
+ *     同一 clientMsgId 仍在处理中时回复 {"type":"PENDING","clientMsgId":..}，客户端稍后重试</li>
+ * </ul>
+ *
+ * <p>握手时请求 {@value WebSocketFrameCodec#CBOR_PROTOCOL} 子协议的客户端改用CBOR二进制帧，消息结构不变，
+ * 服务端推送按批合并为CBOR数组帧，见 {@link WebSocketFrameCodec}。客户端同时请求 permessage-deflate 扩展时，
+ * 由Servlet容器（Tomcat内置支持）协商并压缩，两种协议均适用。</p>
  * @author Administrator
  */
 @Slf4j
 @Component
-public class ChatWebSocketHandler extends TextWebSocketHandler {
+public class ChatWebSocketHandler extends AbstractWebSocketHandler implements SubProtocolCapable {
 
-    private final JwtUtil jwtUtil;
+    /**
+     * 客户端消息ID的去重记录：用户ID:客户端消息ID -> ACK帧（处理中为空串）
+     */
+    private static final String SEND_DEDUP_KEY_PREFIX = "chatbot:ws:send:";
+    private static final long SEND_DEDUP_TTL_SECONDS = 600;
+
+    /**
+     * 处理中标记的过期时间；处理节点中途宕机时，客户端最多等这么久即可用同一ID重试。
+     * 大于消息写入的等待上限（chatbot.message.write-behind.write-timeout-ms），标记过期后的重试由数据库唯一键去重
+     */
+    private static final long SEND_IN_FLIGHT_TTL_SECONDS = 10;
+
+    /**
+     * clientMsgId的最大长度，与消息表 client_msg_id 列一致
+     */
+    private static final int CLIENT_MSG_ID_MAX_LENGTH = 64;
 
-    // UserId -> WebSocketSession
-    private static final Map<Long, WebSocketSession> SESSIONS = new ConcurrentHashMap<>();
+    private final JwtUtil jwtUtil;
+    private final WebSocketRouter webSocketRouter;
+    private final MessageService messageService;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final WebSocketFrameCodec webSocketFrameCodec;
 
-    public ChatWebSocketHandler(JwtUtil jwtUtil) {
+    public ChatWebSocketHandler(JwtUtil jwtUtil, WebSocketRouter webSocketRouter, MessageService messageService,
+                                StringRedisTemplate stringRedisTemplate, WebSocketFrameCodec webSocketFrameCodec) {
         this.jwtUtil = jwtUtil;
+        this.webSocketRouter = webSocketRouter;
+        this.messageService = messageService;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.webSocketFrameCodec = webSocketFrameCodec;
+    }
+
+    /**
+     * 可协商的子协议；客户端未请求时不选择子协议，使用JSON文本帧
+     */
+    @Override
+    public List<String> getSubProtocols() {
+        return Collections.singletonList(WebSocketFrameCodec.CBOR_PROTOCOL);
     }
 
     @Override
@@ -53,31 +109,57 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
             return;
         }
 
-        Long userId = jwtUtil.getUserIdFromToken(token);
-        if (userId == null) {
+        JwtPrincipal principal = jwtUtil.authenticate(token);
+        if (principal == null) {
             log.warn("WebSocket connection with invalid token. Session ID: {}", session.getId());
             session.close(CloseStatus.POLICY_VIOLATION);
             return;
         }
 
-        // 如果用户已有连接，是否踢出旧连接？暂定允许，覆盖
-        SESSIONS.put(userId, session);
+        Long userId = principal.getUserId();
+        // 同一用户可以多端同时在线，各连接都会收到推送
         session.getAttributes().put("userId", userId);
-        log.info("User connected: {}, Session ID: {}", userId, session.getId());
+        webSocketRouter.register(userId, session);
+        log.info("User connected: {}, Session ID: {}, Protocol: {}, Extensions: {}", userId, session.getId(),
+                session.getAcceptedProtocol(), session.getExtensions());
     }
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-        String payload = message.getPayload();
+        handleFrame(session, message.getPayload());
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        List<String> payloads;
+        try {
+            byte[] frame = new byte[message.getPayloadLength()];
+            message.getPayload().get(frame);
+            payloads = webSocketFrameCodec.decode(frame);
+        } catch (Exception e) {
+            log.error("Error decoding binary message. Session ID: {}", session.getId(), e);
+            return;
+        }
+        for (String payload : payloads) {
+            handleFrame(session, payload);
+        }
+    }
+
+    private void handleFrame(WebSocketSession session, String payload) {
         log.debug("Received message: {}", payload);
-        
+
         try {
             if (JSONUtil.isTypeJSON(payload)) {
                 JSONObject json = JSONUtil.parseObj(payload);
                 String type = json.getStr("type");
                 // 简单的Ping/Pong机制
                 if ("PING".equalsIgnoreCase(type)) {
-                    session.sendMessage(new TextMessage("{\"type\":\"PONG\"}"));
+                    webSocketRouter.sendToSession((Long) session.getAttributes().get("userId"), session, "{\"type\":\"PONG\"}");
+                } else if ("SEND".equalsIgnoreCase(type)) {
+                    handleSend(session, json);
+                } else if ("RESUME".equalsIgnoreCase(type)) {
+                    // 重连后补发：客户端带上最后收到的推送序号
+                    webSocketRouter.resume((Long) session.getAttributes().get("userId"), session, json.getLong("lastSeq", 0L));
                 }
             }
         } catch (Exception e) {
@@ -85,36 +167,107 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
         }
     }
 
+    /**
+     * 处理通过连接发送的聊天消息：身份取自握手时的认证结果，与 POST /message/send 走同一发送流程
+     *
+     * <p>同一连接上的帧按到达顺序依次处理，处理完一帧才会处理下一帧，发送顺序天然有序。
+     * 客户端未收到ACK而重发同一 clientMsgId 时不会重复发送，已完成的直接回复原ACK，仍在处理中的回复PENDING。
+     * 消息一旦发送成功就一定回复ACK。Redis中的记录只是快速路径，clientMsgId同时写入消息表的唯一键，
+     * 记录过期、丢失或写入超时后的重发也只会返回已写入的消息。</p>
+     */
+    private void handleSend(WebSocketSession session, JSONObject frame) {
+        Long userId = (Long) session.getAttributes().get("userId");
+        String clientMsgId = frame.getStr("clientMsgId");
+        if (StrUtil.isBlank(clientMsgId)) {
+            reply(userId, session, nack(null, "clientMsgId不能为空"));
+            return;
+        }
+        if (clientMsgId.length() > CLIENT_MSG_ID_MAX_LENGTH) {
+            reply(userId, session, nack(null, "clientMsgId过长"));
+            return;
+        }
+        String dedupKey = SEND_DEDUP_KEY_PREFIX + userId + ":" + clientMsgId;
+        try {
+            Boolean first = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(dedupKey, "", SEND_IN_FLIGHT_TTL_SECONDS, TimeUnit.SECONDS);
+            if (!Boolean.TRUE.equals(first)) {
+                String ack = stringRedisTemplate.opsForValue().get(dedupKey);
+                reply(userId, session, StrUtil.isNotEmpty(ack) ? ack
+                        : new JSONObject().set("type", "PENDING").set("clientMsgId", clientMsgId).toString());
+                return;
+            }
+        } catch (Exception e) {
+            // 无法去重时不发送，客户端稍后用同一ID重试
+            log.error("WebSocket发送消息去重失败 - 用户ID: {}", userId, e);
+            reply(userId, session, nack(clientMsgId, "发送消息失败"));
+            return;
+        }
+
+        SendMessageDTO sendMessageDTO = new SendMessageDTO();
+        sendMessageDTO.setConversationId(frame.getLong("conversationId"));
+        sendMessageDTO.setContent(frame.getStr("content"));
+        sendMessageDTO.setClientMsgId(clientMsgId);
+        MessageVO messageVO;
+        try {
+            messageVO = messageService.send(userId, sendMessageDTO);
+        } catch (Exception e) {
+            // 失败的消息允许客户端用同一ID重试
+            deleteQuietly(dedupKey);
+            String error = e instanceof BizException ? e.getMessage() : "发送消息失败";
+            if (!(e instanceof BizException)) {
+                log.error("WebSocket发送消息失败 - 用户ID: {}", userId, e);
+            }
+            reply(userId, session, nack(clientMsgId, error));
+            return;
+        }
+
+        JSONObject ack = new JSONObject();
+        ack.set("type", "ACK");
+        ack.set("clientMsgId", clientMsgId);
+        ack.set("messageId", messageVO.getId());
+        ack.set("conversationId", messageVO.getConversationId());
+        ack.set("createdAt", StrUtil.toStringOrNull(messageVO.getCreatedAt()));
+        String ackFrame = ack.toString();
+        try {
+            // 保存ACK，同时把处理中标记的过期时间延长为去重窗口
+            stringRedisTemplate.opsForValue().set(dedupKey, ackFrame, SEND_DEDUP_TTL_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.warn("保存WebSocket发送ACK失败，重发同一消息将无法去重 - 用户ID: {}, clientMsgId: {}", userId, clientMsgId, e);
+        }
+        reply(userId, session, ackFrame);
+    }
+
+    private void deleteQuietly(String dedupKey) {
+        try {
+            stringRedisTemplate.delete(dedupKey);
+        } catch (Exception e) {
+            log.warn("删除WebSocket发送去重记录失败，将在过期后允许重试 - key: {}", dedupKey, e);
+        }
+    }
+
+    private void reply(Long userId, WebSocketSession session, String frame) {
+        webSocketRouter.sendToSession(userId, session, frame);
+    }
+
+    private static String nack(String clientMsgId, String error) {
+        return new JSONObject().set("type", "NACK").set("clientMsgId", clientMsgId).set("error", error).toString();
+    }
+
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         Long userId = (Long) session.getAttributes().get("userId");
         if (userId != null) {
-            // 只有当断开的session是当前存储的session时才移除，避免并发登录时的误删
-            WebSocketSession currentSession = SESSIONS.get(userId);
-            if (currentSession != null && currentSession.getId().equals(session.getId())) {
-                SESSIONS.remove(userId);
-            }
+            webSocketRouter.unregister(userId, session);
         }
         log.info("Connection closed. UserId: {}, Session ID: {}, Status: {}", userId, session.getId(), status);
     }
     
     /**
-     * 发送消息给指定用户
+     * 发送消息给指定用户（连接可以在集群中任意节点上）
      * @param userId 用户ID
      * @param message 消息内容 (JSON字符串)
      */
     public void sendMessageToUser(Long userId, String message) {
-        WebSocketSession session = SESSIONS.get(userId);
-        if (session != null && session.isOpen()) {
-            try {
-                synchronized (session) {
-                    session.sendMessage(new TextMessage(message));
-                }
-            } catch (Exception e) {
-                log.error("Failed to send message to user {}", userId, e);
-            }
-        } else {
-            log.debug("User {} not connected, message dropped or should be stored offline", userId);
-        }
+        webSocketRouter.sendToUser(userId, message);
     }
 }
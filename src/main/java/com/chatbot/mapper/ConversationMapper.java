@@ -5,7 +5,6 @@ import org.apache.ibatis.annotations.Delete;
 import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
 
-import java.time.LocalDateTime;
 import java.util.List;
 
 /**
@@ -29,6 +28,11 @@ public interface ConversationMapper {
      */
     List<Conversation> selectByUserId(Long userId);
 
+    /**
+     * 根据会话ID批量查询（不保证顺序）
+     */
+    List<Conversation> selectByIds(@Param("ids") List<Long> ids);
+
     /**
      * 动态更新（按 id + user_id 约束，防止越权修改）
      */
@@ -40,9 +44,10 @@ public interface ConversationMapper {
     int updatePinned(@Param("id") Long id, @Param("userId") Long userId, @Param("isPinned") Boolean isPinned);
 
     /**
-     * 更新最后消息时间（按 id + user_id 约束）
+     * 批量更新最后一条消息的时间与预览（一条 UPDATE ... CASE，只会往后推）
+     * @param conversations 会话ID、最后消息时间、预览与发送者类型
      */
-    int updateLastMessageTime(@Param("id") Long id, @Param("userId") Long userId, @Param("lastMessageTime") LocalDateTime lastMessageTime);
+    int batchUpdateLastMessage(@Param("conversations") List<Conversation> conversations);
 
     /**
      * 删除会话（按 id + user_id 约束）
@@ -0,0 +1,20 @@
+package com.chatbot.mapper;
+
+import com.chatbot.model.entity.ConversationSummary;
+
+/**
+ * 会话摘要表数据访问接口
+ * @author Administrator
+ */
+public interface ConversationSummaryMapper {
+
+    /**
+     * 根据会话ID查询摘要
+     */
+    ConversationSummary selectByConversationId(Long conversationId);
+
+    /**
+     * 新增或更新摘要（只有折叠进度前进时才会覆盖，避免并发写回旧摘要）
+     */
+    int upsert(ConversationSummary conversationSummary);
+}
@@ -1,10 +1,10 @@
 package com.chatbot.mapper;
 
 import com.chatbot.model.entity.Message;
-import com.github.pagehelper.Page;
 import org.apache.ibatis.annotations.Delete;
 import org.apache.ibatis.annotations.Param;
 
+import java.time.LocalDateTime;
 import java.util.List;
 
 /**
@@ -15,15 +15,49 @@ public interface MessageMapper {
 
     int insert(Message message);
 
-    Page<Message> pageByConversationId(@Param("conversationId") Long conversationId);
+    /**
+     * 批量插入消息（多行 INSERT，自增主键按顺序回填）
+     */
+    int insertBatch(List<Message> messages);
 
-    List<Message> selectRecentByConversationId(@Param("conversationId") Long conversationId, @Param("limit") Integer limit);
+    Message selectById(Long id);
 
-    @Delete("DELETE FROM message WHERE conversation_id = #{id}")
-    void deleteByConversationId(Long id);
+    /**
+     * 按投递ID查询消息（AI回复分段的分段ID）
+     */
+    Message selectByDeliveryId(@Param("deliveryId") String deliveryId);
 
     /**
-     * 查询会话的最后一条消息
+     * 按客户端消息ID查询会话中的用户消息
      */
-    Message selectLastByConversationId(@Param("conversationId") Long conversationId);
+    Message selectByClientMsgId(@Param("conversationId") Long conversationId, @Param("clientMsgId") String clientMsgId);
+
+    /**
+     * 游标查询：(createdAt, id) 早于游标的消息，按时间倒序；游标为空时从最新一条开始
+     */
+    List<Message> selectBeforeCursor(@Param("conversationId") Long conversationId,
+                                     @Param("createdAt") LocalDateTime createdAt,
+                                     @Param("id") Long id,
+                                     @Param("limit") Integer limit);
+
+    /**
+     * 游标查询：(createdAt, id) 晚于游标的消息，按时间正序
+     */
+    List<Message> selectAfterCursor(@Param("conversationId") Long conversationId,
+                                    @Param("createdAt") LocalDateTime createdAt,
+                                    @Param("id") Long id,
+                                    @Param("limit") Integer limit);
+
+    List<Message> selectRecentByConversationId(@Param("conversationId") Long conversationId, @Param("limit") Integer limit);
+
+    /**
+     * 查询会话中 ID 位于 (afterId, beforeId) 区间内的消息（按时间正序，用于折叠摘要）
+     */
+    List<Message> selectRangeByConversationId(@Param("conversationId") Long conversationId,
+                                              @Param("afterId") Long afterId,
+                                              @Param("beforeId") Long beforeId,
+                                              @Param("limit") Integer limit);
+
+    @Delete("DELETE FROM message WHERE conversation_id = #{id}")
+    void deleteByConversationId(Long id);
 }
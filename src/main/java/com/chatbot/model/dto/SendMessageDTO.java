@@ -2,6 +2,7 @@ package com.chatbot.model.dto;
 
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Size;
 import lombok.Data;
 
 /**
@@ -15,5 +16,11 @@ public class SendMessageDTO {
 
     @NotBlank(message = "消息内容不能为空")
     private String content;
+
+    /**
+     * 客户端消息ID（可选），同一会话内重复提交同一ID只写入一次
+     */
+    @Size(max = 64, message = "客户端消息ID过长")
+    private String clientMsgId;
 }
 
@@ -44,6 +44,16 @@ public class Conversation {
      */
     private LocalDateTime lastMessageTime;
     
+    /**
+     * 最后一条消息的内容预览
+     */
+    private String lastMessage;
+
+    /**
+     * 最后一条消息的发送者类型
+     */
+    private Message.SenderType lastMessageSenderType;
+
     /**
      * 创建时间
      */
@@ -0,0 +1,40 @@
+package com.chatbot.model.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 会话滚动摘要实体类
+ *
+ * @author Administrator
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ConversationSummary {
+
+    /**
+     * 会话ID
+     */
+    private Long conversationId;
+
+    /**
+     * 摘要内容
+     */
+    private String summary;
+
+    /**
+     * 已折叠进摘要的最后一条消息ID
+     */
+    private Long lastMessageId;
+
+    /**
+     * 更新时间
+     */
+    private LocalDateTime updatedAt;
+}
@@ -43,6 +43,16 @@ public class Message {
      * 发送时间
      */
     private LocalDateTime createdAt;
+
+    /**
+     * 投递ID（AI回复分段的分段ID，唯一），分段被重复投递时用于去重；用户消息为空
+     */
+    private String deliveryId;
+
+    /**
+     * 客户端消息ID（会话内唯一），客户端重发同一消息时用于去重；AI消息与未提供的为空
+     */
+    private String clientMsgId;
     
     /**
      * 发送者类型枚举
@@ -1,9 +1,8 @@
 package com.chatbot.service;
 
+import com.chatbot.common.result.PageResult;
 import com.chatbot.model.vo.ConversationVO;
 
-import java.util.List;
-
 /**
  * 会话服务
  * @author Administrator
@@ -16,9 +15,12 @@ public interface ConversationService {
     ConversationVO create(Long characterId);
 
     /**
-     * 获取当前用户的会话列表
+     * 分页获取当前用户的会话列表
+     *
+     * @param pageNum 页码（从1开始）
+     * @param pageSize 每页条数
      */
-    List<ConversationVO> list();
+    PageResult list(int pageNum, int pageSize);
 
     /**
      * 删除会话
@@ -1,6 +1,6 @@
 package com.chatbot.service;
 
-import com.chatbot.common.result.PageResult;
+import com.chatbot.common.result.CursorResult;
 import com.chatbot.model.dto.SendMessageDTO;
 import com.chatbot.model.vo.MessageVO;
 
@@ -11,6 +11,17 @@ public interface MessageService {
 
     MessageVO send(SendMessageDTO sendMessageDTO);
 
-    PageResult list(Long conversationId, int pageNum, int pageSize);
+    /**
+     * 以指定用户身份发送消息（不依赖请求线程上的登录信息，供WebSocket等已完成认证的通道调用）
+     */
+    MessageVO send(Long userId, SendMessageDTO sendMessageDTO);
+
+    /**
+     * 游标分页查询消息
+     * @param before 只返回该消息之前的消息（可为空）
+     * @param after 只返回该消息之后的消息（可为空，与 before 同时传时以 before 为准）
+     * @param limit 条数
+     */
+    CursorResult list(Long conversationId, Long before, Long after, int limit);
 }
 
@@ -1,10 +1,18 @@
 package com.chatbot.service.core;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.collection.CollUtil;
 import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONConfig;
+import com.chatbot.common.util.TokenEstimator;
 import com.chatbot.model.entity.AiCharacter;
 import com.chatbot.model.entity.Message;
+import jakarta.annotation.PostConstruct;
 import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.SystemMessage;
 import org.springframework.ai.chat.messages.UserMessage;
 import org.springframework.ai.chat.prompt.Prompt;
 import org.springframework.ai.chat.prompt.SystemPromptTemplate;
@@ -12,6 +20,8 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -25,32 +35,76 @@ import java.util.Map;
 @Component
 public class AiContextBuilder {
 
+    /**
+     * System Prompt 缓存容量（按角色ID缓存）
+     */
+    private static final int SYSTEM_PROMPT_CACHE_CAPACITY = 1024;
+
+    /**
+     * Prompt缓存断点标记（消息元数据键）：标记之前（含）的内容在相邻轮次之间保持逐字节一致，可由支持
+     * Prompt Caching 的模型客户端转换为 cache_control 断点（当前的 Spring AI 1.0.0-M6 客户端不会发送，
+     * 标记仅为升级客户端后启用预留；前缀稳定本身不依赖该标记）
+     */
+    public static final String CACHE_BREAKPOINT = "cache_breakpoint";
+
+    /**
+     * 会话摘要的引导语
+     */
+    private static final String SUMMARY_PREFIX = "以下是你与用户更早之前聊天内容的摘要，请据此保持记忆连贯，不要主动复述：\n";
+
     @Value("classpath:prompts/system-prompt.st")
     private Resource systemPromptResource;
 
+    /**
+     * 模板原文，启动时读取一次
+     */
+    private String systemPromptText;
+
+    /**
+     * 角色ID -> 渲染后的 System Message
+     */
+    private final LRUCache<Long, CachedSystemPrompt> systemPromptCache = CacheUtil.newLRUCache(SYSTEM_PROMPT_CACHE_CAPACITY);
+
+    @PostConstruct
+    public void init() throws IOException {
+        systemPromptText = systemPromptResource.getContentAsString(StandardCharsets.UTF_8);
+    }
+
     /**
      * 构建完整的Prompt对象
+     * <p>消息顺序按稳定程度排列：角色设定 → 摘要 → 历史消息 → 新输入，
+     * 角色设定与最后一条历史消息上打缓存断点，使相邻轮次可复用同一前缀。</p>
      * @param character AI角色设定
+     * @param summary 会话滚动摘要（可为空）
      * @param historyMessages 历史消息列表（按时间正序）
      * @param newUserInput 用户的新输入
      * @return Spring AI Prompt对象
      */
-    public Prompt buildPrompt(AiCharacter character, List<Message> historyMessages, String newUserInput) {
+    public Prompt buildPrompt(AiCharacter character, String summary, List<Message> historyMessages, String newUserInput) {
         List<org.springframework.ai.chat.messages.Message> messages = new ArrayList<>();
 
         // 1. 构建并添加 System Message
         org.springframework.ai.chat.messages.Message systemMessage = buildSystemMessage(character);
         messages.add(systemMessage);
 
-        // 2. 添加历史消息 (限制最近N条，防止Context Window溢出，这里暂定最近20条)
+        // 1.1 添加更早历史的滚动摘要（放在角色设定之后，保持角色设定部分在各轮之间不变）
+        if (StrUtil.isNotBlank(summary)) {
+            messages.add(new SystemMessage(SUMMARY_PREFIX + summary));
+        }
+
+        // 2. 添加历史消息（已由 ContextWindowPlanner 按token预算裁剪，防止Context Window溢出）
         if (CollUtil.isNotEmpty(historyMessages)) {
+            org.springframework.ai.chat.messages.Message historyMessage = null;
             for (Message msg : historyMessages) {
                 if (Message.SenderType.USER.equals(msg.getSenderType())) {
-                    messages.add(new UserMessage(msg.getContent()));
+                    historyMessage = new UserMessage(msg.getContent());
                 } else {
-                    messages.add(new AssistantMessage(msg.getContent()));
+                    historyMessage = new AssistantMessage(msg.getContent());
                 }
+                messages.add(historyMessage);
             }
+            // 历史部分是下一轮Prompt的前缀，在其末尾打缓存断点
+            historyMessage.getMetadata().put(CACHE_BREAKPOINT, true);
         }
 
         // 3. 添加用户最新输入
@@ -62,10 +116,80 @@ public class AiContextBuilder {
     }
 
     /**
-     * 根据角色实体构建 System Message
+     * 使角色的 System Message 缓存失效（角色信息修改或删除后调用）
+     * @param characterId AI角色ID
      */
+    public void evictSystemPrompt(Long characterId) {
+        if (characterId != null) {
+            systemPromptCache.remove(characterId);
+        }
+    }
+
+    /**
+     * 估算角色 System Prompt 的token数
+     * @param character AI角色设定
+     * @return 估算的token数
+     */
+    public int estimateSystemPromptTokens(AiCharacter character) {
+        return systemPrompt(character).tokens;
+    }
+
+    /**
+     * 估算会话摘要消息的token数
+     * @param summary 会话滚动摘要（可为空）
+     * @return 估算的token数
+     */
+    public int estimateSummaryTokens(String summary) {
+        return StrUtil.isBlank(summary) ? 0 : TokenEstimator.estimateMessage(SUMMARY_PREFIX + summary);
+    }
+
     private org.springframework.ai.chat.messages.Message buildSystemMessage(AiCharacter character) {
-        SystemPromptTemplate systemPromptTemplate = new SystemPromptTemplate(systemPromptResource);
+        return systemPrompt(character).message;
+    }
+
+    /**
+     * 获取角色的 System Message，优先命中缓存
+     * 缓存条目同时记录角色设定的摘要，即使失效通知丢失（如并发读到旧数据后回填，或失效只发生在其他节点）也不会返回过期内容
+     */
+    private CachedSystemPrompt systemPrompt(AiCharacter character) {
+        String version = promptVersion(character);
+        if (character.getId() != null) {
+            CachedSystemPrompt cached = systemPromptCache.get(character.getId());
+            if (cached != null && cached.version.equals(version)) {
+                return cached;
+            }
+        }
+        org.springframework.ai.chat.messages.Message message = renderSystemMessage(character);
+        // 在放入缓存前打断点标记，缓存后的消息对象不再修改（多线程共享）
+        message.getMetadata().put(CACHE_BREAKPOINT, true);
+        CachedSystemPrompt rendered = new CachedSystemPrompt(version, message, TokenEstimator.estimateMessage(message.getText()));
+        if (character.getId() != null) {
+            systemPromptCache.put(character.getId(), rendered);
+        }
+        return rendered;
+    }
+
+    /**
+     * 参与 System Prompt 渲染的角色字段的SHA-256摘要；字段序列化为JSON数组，字段边界不会混淆
+     */
+    private String promptVersion(AiCharacter character) {
+        // 保留null，字段位置固定
+        JSONArray fields = new JSONArray(JSONConfig.create().setIgnoreNullValue(false));
+        fields.add(character.getName());
+        fields.add(character.getAge());
+        fields.add(character.getRelationship());
+        fields.add(character.getPersonalityTags());
+        fields.add(character.getBackground());
+        fields.add(character.getSpeakingStyle());
+        fields.add(character.getMemorySettings());
+        return DigestUtil.sha256Hex(fields.toString());
+    }
+
+    /**
+     * 根据角色实体渲染 System Message
+     */
+    private org.springframework.ai.chat.messages.Message renderSystemMessage(AiCharacter character) {
+        SystemPromptTemplate systemPromptTemplate = new SystemPromptTemplate(systemPromptText);
         Map<String, Object> model = new HashMap<>();
         
         model.put("name", character.getName());
@@ -78,4 +202,17 @@ public class AiContextBuilder {
 
         return systemPromptTemplate.createMessage(model);
     }
+
+    private static final class CachedSystemPrompt {
+
+        private final String version;
+        private final org.springframework.ai.chat.messages.Message message;
+        private final int tokens;
+
+        private CachedSystemPrompt(String version, org.springframework.ai.chat.messages.Message message, int tokens) {
+            this.version = version;
+            this.message = message;
+            this.tokens = tokens;
+        }
+    }
 }
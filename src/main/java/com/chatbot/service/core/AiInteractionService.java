@@ -1,6 +1,8 @@
 package com.chatbot.service.core;
 
-import com.chatbot.common.util.TextSplitter;
+import cn.hutool.core.util.StrUtil;
+import com.chatbot.common.util.ActionDescriptionFilter;
+import com.chatbot.common.util.StreamingTextSplitter;
 import com.chatbot.model.entity.AiCharacter;
 import com.chatbot.model.entity.Message;
 import lombok.extern.slf4j.Slf4j;
@@ -9,9 +11,14 @@ import org.springframework.ai.chat.model.ChatResponse;
 import org.springframework.ai.chat.prompt.Prompt;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * AI交互核心服务
@@ -24,35 +31,39 @@ public class AiInteractionService {
 
     private final ChatModel chatModel;
     private final AiContextBuilder contextBuilder;
+    private final AiUsageMetrics usageMetrics;
 
     @Autowired
-    public AiInteractionService(ChatModel chatModel, AiContextBuilder contextBuilder) {
+    public AiInteractionService(ChatModel chatModel, AiContextBuilder contextBuilder, AiUsageMetrics usageMetrics) {
         this.chatModel = chatModel;
         this.contextBuilder = contextBuilder;
+        this.usageMetrics = usageMetrics;
     }
 
     /**
      * 与AI角色进行对话
      * @param character AI角色设定
+     * @param summary 会话滚动摘要（可为空）
      * @param historyMessages 历史消息上下文
      * @param userMessage 用户发送的新消息
      * @return 分段后的回复列表
      */
-    public List<String> chat(AiCharacter character, List<Message> historyMessages, String userMessage) {
+    public List<String> chat(AiCharacter character, String summary, List<Message> historyMessages, String userMessage) {
         try {
             log.info("调用AI模型 - 角色: {}, 用户消息: {}", character.getName(), userMessage);
             
             // 1. 构建 Prompt
-            Prompt prompt = contextBuilder.buildPrompt(character, historyMessages, userMessage);
+            Prompt prompt = contextBuilder.buildPrompt(character, summary, historyMessages, userMessage);
 
             // 2. 调用 LLM
             ChatResponse response = chatModel.call(prompt);
+            usageMetrics.record(response);
             
             String rawResponse = response.getResult().getOutput().getText();
             log.info("AI原始回复: {}", rawResponse);
             
             // 3. 过滤掉括号内的动作描述
-            String filteredResponse = removeActionDescriptions(rawResponse);
+            String filteredResponse = ActionDescriptionFilter.strip(rawResponse);
             log.info("AI过滤后回复: {}", filteredResponse);
 
             // 4. 不再分段，直接返回完整回复
@@ -65,26 +76,63 @@ public class AiInteractionService {
             return Collections.singletonList("我有点累了，休息了");
         }
     }
-    
+
+    /**
+     * 与AI角色进行流式对话
+     * 逐token接收模型输出，增量过滤动作描述，每凑满一句即向下游发出，
+     * 流式调用在产出任何片段之前失败时，回退到阻塞调用 {@link #chat}
+     * @param character AI角色设定
+     * @param summary 会话滚动摘要（可为空）
+     * @param historyMessages 历史消息上下文
+     * @param userMessage 用户发送的新消息
+     * @return 按句切分的回复流
+     */
+    public Flux<String> chatStream(AiCharacter character, String summary, List<Message> historyMessages, String userMessage) {
+        return Flux.defer(() -> {
+            // 保留换行，便于按行切分片段
+            ActionDescriptionFilter filter = new ActionDescriptionFilter(true);
+            StreamingTextSplitter splitter = new StreamingTextSplitter();
+            AtomicBoolean emitted = new AtomicBoolean(false);
+            AtomicInteger segmentCount = new AtomicInteger();
+            AtomicReference<ChatResponse> lastResponse = new AtomicReference<>();
+
+            return Flux.defer(() -> {
+                        log.info("调用AI模型(流式) - 角色: {}, 用户消息: {}", character.getName(), userMessage);
+                        Prompt prompt = contextBuilder.buildPrompt(character, summary, historyMessages, userMessage);
+                        return chatModel.stream(prompt);
+                    })
+                    .doOnNext(lastResponse::set)
+                    .doOnComplete(() -> usageMetrics.record(lastResponse.get()))
+                    .map(this::extractText)
+                    .map(filter::append)
+                    .concatWith(Mono.fromSupplier(filter::finish))
+                    .concatMapIterable(splitter::append)
+                    .concatWith(Flux.defer(() -> Flux.fromIterable(splitter.flush())))
+                    .filter(StrUtil::isNotBlank)
+                    .doOnNext(segment -> {
+                        emitted.set(true);
+                        log.debug("AI流式片段 [{}]: {}", segmentCount.incrementAndGet(), segment);
+                    })
+                    .doOnComplete(() -> log.info("AI流式回复完成 - 角色: {}, 片段数: {}", character.getName(), segmentCount.get()))
+                    .onErrorResume(e -> {
+                        if (emitted.get()) {
+                            log.error("AI流式回复中断 - 角色: {}, 错误: {}", character.getName(), e.getMessage(), e);
+                            return Flux.empty();
+                        }
+                        log.warn("AI流式调用失败，回退为阻塞调用 - 角色: {}, 错误: {}", character.getName(), e.getMessage());
+                        return Flux.fromIterable(chat(character, summary, historyMessages, userMessage));
+                    });
+        });
+    }
+
     /**
-     * 移除文本中的动作描述（括号内容）
-     * 支持多种括号：()、（）、[]、【】等
+     * 提取流式响应块中的文本（部分块只携带元数据，没有生成内容）
      */
-    private String removeActionDescriptions(String text) {
-        if (text == null || text.isEmpty()) {
-            return text;
+    private String extractText(ChatResponse response) {
+        if (response == null || response.getResult() == null || response.getResult().getOutput() == null) {
+            return "";
         }
-        
-        // 移除各种括号及其内容
-        String result = text;
-        result = result.replaceAll("\\([^)]*\\)", "");  // 移除 (xxx)
-        result = result.replaceAll("（[^）]*）", "");    // 移除 （xxx）
-        result = result.replaceAll("\\[[^\\]]*\\]", ""); // 移除 [xxx]
-        result = result.replaceAll("【[^】]*】", "");    // 移除 【xxx】
-        
-        // 清理多余的空格
-        result = result.replaceAll("\\s+", " ").trim();
-        
-        return result;
+        String text = response.getResult().getOutput().getText();
+        return text == null ? "" : text;
     }
 }
@@ -0,0 +1,211 @@
+package com.chatbot.service.core;
+
+import com.chatbot.common.properties.AiProperties;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * AI回复调度协调器
+ * 按会话对用户连续发送的消息做防抖与合并：防抖窗口内、或已有生成任务排队时到达的消息，
+ * 合并为一次生成，避免一连串短消息各自触发一次LLM调用、回复互相穿插
+ *
+ * <p>每个会话的状态机：空闲 → 防抖中 → 排队中 → 生成中（含分段发送）。
+ * 生成中收到新消息时，本轮回复已经过时：取消模型调用、丢弃尚未发出的分段，重新进入防抖，
+ * 由下一轮生成统一回复所有未回复的消息；会话删除时同样取消。</p>
+ * @author Administrator
+ */
+@Slf4j
+@Service
+public class AiReplyCoordinator {
+
+    @Resource
+    private AiProperties aiProperties;
+    @Resource
+    private HumanLikeScheduler humanLikeScheduler;
+    @Resource
+    private LlmDispatcher llmDispatcher;
+
+    private final ScheduledExecutorService debounceTimer = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * 会话ID -> 回复状态；会话空闲后即移除
+     */
+    private final Map<Long, ReplyState> states = new ConcurrentHashMap<>();
+
+    @PreDestroy
+    public void shutdown() {
+        debounceTimer.shutdown();
+    }
+
+    /**
+     * 请求为会话生成一次AI回复
+     * @param conversationId 会话ID
+     * @param userId 会话所属用户，生成任务按用户公平调度
+     * @param generation 生成任务：执行LLM调用并加入发送队列，返回的Future在回复全部发送完毕后完成；
+     *                   入参为本轮的取消凭证
+     */
+    public void requestReply(Long conversationId, Long userId, Function<ReplyTicket, CompletableFuture<Void>> generation) {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        states.compute(conversationId, (id, state) -> {
+            if (state == null) {
+                state = new ReplyState();
+            }
+            state.userId = userId;
+            state.generation = generation;
+            switch (state.phase) {
+                case QUEUED:
+                    // 任务尚未开始，开始时会读到这条新消息，无需额外处理
+                    log.debug("合并到排队中的生成任务 - 会话ID: {}", id);
+                    break;
+                case RUNNING:
+                    log.debug("生成进行中收到新消息，取消本轮并重新合并生成 - 会话ID: {}", id);
+                    cancelRunning(state);
+                    cancelled.set(true);
+                    scheduleDebounce(id, state);
+                    break;
+                default:
+                    scheduleDebounce(id, state);
+                    break;
+            }
+            return state;
+        });
+        // 丢弃分段会完成本轮的发送Future并回调 finish，须在 compute 之外进行
+        if (cancelled.get()) {
+            humanLikeScheduler.cancel(conversationId);
+        }
+    }
+
+    /**
+     * 取消会话的回复：防抖计时、排队或进行中的生成，以及尚未发出的分段（会话删除时调用）
+     * @param conversationId 会话ID
+     */
+    public void cancel(Long conversationId) {
+        states.compute(conversationId, (id, state) -> {
+            if (state != null) {
+                if (state.debounce != null) {
+                    state.debounce.cancel(false);
+                }
+                cancelRunning(state);
+            }
+            return null;
+        });
+        humanLikeScheduler.cancel(conversationId);
+    }
+
+    /**
+     * 取消排队中/进行中的生成（须在 states.compute 内调用）
+     * 中断执行线程会使阻塞中的流式订阅被取消，从而断开与模型的HTTP请求
+     */
+    private void cancelRunning(ReplyState state) {
+        if (state.ticket != null) {
+            state.ticket.cancel();
+            state.ticket = null;
+        }
+        if (state.task != null) {
+            state.task.cancel(true);
+            state.task = null;
+        }
+    }
+
+    /**
+     * 重新开始防抖计时（须在 states.compute 内调用）
+     */
+    private void scheduleDebounce(Long conversationId, ReplyState state) {
+        if (state.debounce != null) {
+            state.debounce.cancel(false);
+        }
+        long round = ++state.round;
+        state.phase = Phase.DEBOUNCING;
+        state.debounce = debounceTimer.schedule(() -> dispatch(conversationId, round),
+                aiProperties.getDebounceMs(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 防抖到期，提交生成任务
+     */
+    private void dispatch(Long conversationId, long round) {
+        states.computeIfPresent(conversationId, (id, st) -> {
+            // 计时器已被更新的消息重置，忽略过期的这一次
+            if (st.phase != Phase.DEBOUNCING || st.round != round) {
+                return st;
+            }
+            st.debounce = null;
+            st.phase = Phase.QUEUED;
+            st.ticket = new ReplyTicket();
+            try {
+                st.task = llmDispatcher.submit(st.userId, () -> run(id, round));
+            } catch (RejectedExecutionException e) {
+                // 放弃本轮；未回复的消息会在用户下次发言时合并进新一轮生成
+                log.warn("LLM调度队列已满，放弃本轮回复 - 会话ID: {}, 原因: {}", id, e.getMessage());
+                return null;
+            }
+            return st;
+        });
+    }
+
+    private void run(Long conversationId, long round) {
+        ReplyState state = states.computeIfPresent(conversationId, (id, st) -> {
+            if (st.round == round && st.phase == Phase.QUEUED) {
+                st.phase = Phase.RUNNING;
+            }
+            return st;
+        });
+        if (state == null || state.round != round || state.phase != Phase.RUNNING) {
+            return;
+        }
+        ReplyTicket ticket = state.ticket;
+        if (ticket == null || ticket.isCancelled()) {
+            return;
+        }
+
+        CompletableFuture<Void> delivered;
+        try {
+            delivered = state.generation.apply(ticket);
+        } catch (Exception e) {
+            log.error("AI回复生成任务执行失败 - 会话ID: {}", conversationId, e);
+            delivered = null;
+        }
+        if (delivered == null) {
+            delivered = CompletableFuture.completedFuture(null);
+        }
+        delivered.whenComplete((v, e) -> finish(conversationId, round));
+    }
+
+    /**
+     * 本轮回复发送完毕，移除会话状态（本轮已被取消、会话已进入新一轮时忽略）
+     */
+    private void finish(Long conversationId, long round) {
+        states.computeIfPresent(conversationId, (id, st) -> st.round == round && st.phase == Phase.RUNNING ? null : st);
+    }
+
+    private enum Phase {
+        DEBOUNCING,
+        QUEUED,
+        RUNNING
+    }
+
+    private static final class ReplyState {
+
+        private Phase phase = Phase.DEBOUNCING;
+        private long round;
+        private Long userId;
+        private ScheduledFuture<?> debounce;
+        private volatile ReplyTicket ticket;
+        private Future<?> task;
+        private volatile Function<ReplyTicket, CompletableFuture<Void>> generation;
+    }
+}
@@ -0,0 +1,74 @@
+package com.chatbot.service.core;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.metadata.ChatResponseMetadata;
+import org.springframework.ai.chat.metadata.Usage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.stereotype.Component;
+
+/**
+ * AI调用用量指标
+ * 记录每次调用的输入/输出token数，以及Prompt缓存的命中（读取）与写入token数
+ *
+ * <p>缓存token数从响应元数据中的 {@code cache_read_input_tokens} / {@code cache_creation_input_tokens} 读取。
+ * 当前使用的模型客户端（Spring AI 1.0.0-M6）既不发送 cache_control 断点也不回传这两个字段，
+ * 此时无从判断是否命中：缓存相关指标只在响应中确实带有这些字段时才注册和记录，不会把每次调用都记为未命中。</p>
+ * @author Administrator
+ */
+@Slf4j
+@Component
+public class AiUsageMetrics {
+
+    public static final String CACHE_READ_INPUT_TOKENS = "cache_read_input_tokens";
+    public static final String CACHE_CREATION_INPUT_TOKENS = "cache_creation_input_tokens";
+
+    private final MeterRegistry meterRegistry;
+    private final Counter inputTokens;
+    private final Counter outputTokens;
+
+    public AiUsageMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.inputTokens = meterRegistry.counter("chatbot.ai.tokens", "type", "input");
+        this.outputTokens = meterRegistry.counter("chatbot.ai.tokens", "type", "output");
+    }
+
+    /**
+     * 记录一次调用的用量（流式调用传入最后一个响应块）
+     * @param response 模型响应
+     */
+    public void record(ChatResponse response) {
+        if (response == null || response.getMetadata() == null) {
+            return;
+        }
+        ChatResponseMetadata metadata = response.getMetadata();
+        Usage usage = metadata.getUsage();
+        long prompt = 0;
+        long completion = 0;
+        if (usage != null) {
+            prompt = toLong(usage.getPromptTokens());
+            completion = toLong(usage.getGenerationTokens());
+        }
+        inputTokens.increment(prompt);
+        outputTokens.increment(completion);
+
+        Object cacheReadValue = metadata.get(CACHE_READ_INPUT_TOKENS);
+        Object cacheWriteValue = metadata.get(CACHE_CREATION_INPUT_TOKENS);
+        if (cacheReadValue == null && cacheWriteValue == null) {
+            // 客户端不支持Prompt缓存，不记录命中率
+            log.debug("AI用量 - 输入: {}, 输出: {}", prompt, completion);
+            return;
+        }
+        long cacheRead = toLong(cacheReadValue);
+        long cacheWrite = toLong(cacheWriteValue);
+        meterRegistry.counter("chatbot.ai.tokens", "type", "cache_read").increment(cacheRead);
+        meterRegistry.counter("chatbot.ai.tokens", "type", "cache_write").increment(cacheWrite);
+        meterRegistry.counter("chatbot.ai.prompt.cache", "result", cacheRead > 0 ? "hit" : "miss").increment();
+        log.debug("AI用量 - 输入: {}, 输出: {}, 缓存读取: {}, 缓存写入: {}", prompt, completion, cacheRead, cacheWrite);
+    }
+
+    private long toLong(Object value) {
+        return value instanceof Number number ? number.longValue() : 0L;
+    }
+}
@@ -0,0 +1,177 @@
+package com.chatbot.service.core;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.collection.CollUtil;
+import com.chatbot.common.properties.AiProperties;
+import com.chatbot.common.util.TokenEstimator;
+import com.chatbot.model.entity.AiCharacter;
+import com.chatbot.model.entity.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 上下文窗口规划器
+ * 按token预算从最新消息往前挑选历史消息，替代固定条数的历史窗口
+ *
+ * <p>预算 = 上下文总预算 - 输出预留（max-tokens） - System Prompt - 会话摘要 - 用户新输入。</p>
+ *
+ * <p>窗口起点是“粘性”的：只要从上次的起点到最新消息仍能放进预算，就保持起点不动，
+ * 使相邻轮次的Prompt前缀逐字节一致、可以命中Prompt缓存；超出预算时才整体前移，
+ * 一次腾出 (1 - compactRatio) 的预算空间，而不是每轮滑动一条。</p>
+ * @author Administrator
+ */
+@Slf4j
+@Component
+public class ContextWindowPlanner {
+
+    /**
+     * 消息token估算值缓存容量（消息内容不可变，按消息ID缓存）
+     */
+    private static final int TOKEN_CACHE_CAPACITY = 100_000;
+
+    /**
+     * 窗口起点缓存容量（按会话ID）
+     */
+    private static final int WINDOW_ANCHOR_CAPACITY = 100_000;
+
+    @Resource
+    private AiProperties aiProperties;
+    @Resource
+    private AiContextBuilder aiContextBuilder;
+
+    @Value("${spring.ai.anthropic.chat.options.max-tokens:2000}")
+    private int maxOutputTokens;
+
+    /**
+     * 消息ID -> 估算的token数
+     */
+    private final LRUCache<Long, Integer> tokenCache = CacheUtil.newLRUCache(TOKEN_CACHE_CAPACITY);
+
+    /**
+     * 会话ID -> 当前窗口起点消息ID
+     */
+    private final LRUCache<Long, Long> windowAnchors = CacheUtil.newLRUCache(WINDOW_ANCHOR_CAPACITY);
+
+    private final Counter windowReused;
+    private final Counter windowRebuilt;
+
+    public ContextWindowPlanner(MeterRegistry meterRegistry) {
+        this.windowReused = meterRegistry.counter("chatbot.ai.context.window", "result", "reused");
+        this.windowRebuilt = meterRegistry.counter("chatbot.ai.context.window", "result", "rebuilt");
+    }
+
+    /**
+     * 在预算内挑选历史消息
+     * @param conversationId 会话ID
+     * @param character AI角色设定
+     * @param summary 会话滚动摘要（可为空）
+     * @param candidates 候选历史消息（按时间正序）
+     * @param newUserInput 用户的新输入
+     * @return 可放入上下文的最近若干条消息（按时间正序）
+     */
+    public List<Message> fit(Long conversationId, AiCharacter character, String summary, List<Message> candidates, String newUserInput) {
+        if (CollUtil.isEmpty(candidates)) {
+            return candidates;
+        }
+        int budget = historyBudget(character, summary, newUserInput);
+        if (budget <= 0) {
+            log.warn("上下文预算不足，不携带历史消息 - 角色ID: {}, 剩余预算: {}", character.getId(), budget);
+            return Collections.emptyList();
+        }
+
+        // 1. 上次的窗口起点仍在候选范围内且放得下时，沿用该起点
+        Long anchor = windowAnchors.get(conversationId);
+        int anchorIndex = indexOf(candidates, anchor);
+        if (anchorIndex >= 0 && tokensFrom(candidates, anchorIndex) <= budget) {
+            windowReused.increment();
+            return candidates.subList(anchorIndex, candidates.size());
+        }
+
+        // 2. 否则从最新消息往前重新填充，只用到预算的 compactRatio，为后续轮次预留增长空间
+        int target = anchor == null ? budget : (int) (budget * aiProperties.getContext().getCompactRatio());
+        int used = 0;
+        int start = candidates.size();
+        while (start > 0) {
+            int tokens = estimateTokens(candidates.get(start - 1));
+            if (used + tokens > target) {
+                break;
+            }
+            used += tokens;
+            start--;
+        }
+        if (start < candidates.size()) {
+            windowAnchors.put(conversationId, candidates.get(start).getId());
+        }
+        windowRebuilt.increment();
+        log.debug("上下文窗口重建 - 会话ID: {}, 候选: {}, 选中: {}, 历史预算: {}, 已用: {}",
+                conversationId, candidates.size(), candidates.size() - start, budget, used);
+        return candidates.subList(start, candidates.size());
+    }
+
+    /**
+     * 给定的历史消息能否整体放进预算（用于判断窗口之前尚未折叠进摘要的消息能否一并带上）
+     * @param character AI角色设定
+     * @param summary 会话滚动摘要（可为空）
+     * @param history 历史消息（按时间正序）
+     * @param newUserInput 用户的新输入
+     */
+    public boolean fits(AiCharacter character, String summary, List<Message> history, String newUserInput) {
+        return tokensFrom(history, 0) <= historyBudget(character, summary, newUserInput);
+    }
+
+    /**
+     * 消息ID在候选列表中的位置；候选列表中最早的消息比起点还晚（起点已不在加载范围内）时返回 -1
+     */
+    private int indexOf(List<Message> candidates, Long messageId) {
+        if (messageId == null) {
+            return -1;
+        }
+        for (int i = 0; i < candidates.size(); i++) {
+            Long id = candidates.get(i).getId();
+            if (id != null && id >= messageId) {
+                return i == 0 && !messageId.equals(id) ? -1 : i;
+            }
+        }
+        return -1;
+    }
+
+    private int tokensFrom(List<Message> candidates, int fromIndex) {
+        int total = 0;
+        for (int i = fromIndex; i < candidates.size(); i++) {
+            total += estimateTokens(candidates.get(i));
+        }
+        return total;
+    }
+
+    /**
+     * 历史消息可用的token预算
+     */
+    private int historyBudget(AiCharacter character, String summary, String newUserInput) {
+        return aiProperties.getContext().getBudgetTokens()
+                - maxOutputTokens
+                - aiContextBuilder.estimateSystemPromptTokens(character)
+                - aiContextBuilder.estimateSummaryTokens(summary)
+                - TokenEstimator.estimateMessage(newUserInput);
+    }
+
+    private int estimateTokens(Message message) {
+        if (message.getId() == null) {
+            return TokenEstimator.estimateMessage(message.getContent());
+        }
+        Integer cached = tokenCache.get(message.getId());
+        if (cached != null) {
+            return cached;
+        }
+        int tokens = TokenEstimator.estimateMessage(message.getContent());
+        tokenCache.put(message.getId(), tokens);
+        return tokens;
+    }
+}
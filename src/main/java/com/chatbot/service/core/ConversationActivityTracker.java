@@ -0,0 +1,161 @@
+package com.chatbot.service.core;
+
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.util.StrUtil;
+import com.chatbot.common.properties.MessageProperties;
+import com.chatbot.mapper.ConversationMapper;
+import com.chatbot.model.entity.Conversation;
+import com.chatbot.model.entity.Message;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 会话活跃时间累加器
+ * 在内存中按会话记录最后一条消息（时间与内容预览），定期以一条 UPDATE ... CASE 批量写回会话表，
+ * 避免每条消息都更新同一行会话记录造成的行锁竞争
+ *
+ * <p>尚未写回的值会叠加到会话查询结果上（{@link #overlay(List)}），列表排序与预览不受延迟写回影响。</p>
+ * @author Administrator
+ */
+@Slf4j
+@Component
+public class ConversationActivityTracker {
+
+    /**
+     * 单条 UPDATE 语句最多更新的会话数
+     */
+    private static final int FLUSH_CHUNK_SIZE = 500;
+
+    /**
+     * 消息预览的最大长度（字符）
+     */
+    static final int PREVIEW_LENGTH = 100;
+
+    /**
+     * 会话列表的默认排序：置顶优先，其次按最后消息时间倒序（与 selectByUserId 一致）
+     */
+    private static final Comparator<Conversation> LIST_ORDER = Comparator
+            .comparing((Conversation c) -> Boolean.TRUE.equals(c.getIsPinned())).reversed()
+            .thenComparing(Conversation::getLastMessageTime, Comparator.nullsLast(Comparator.reverseOrder()))
+            .thenComparing(Conversation::getId, Comparator.nullsLast(Comparator.reverseOrder()));
+
+    @Resource
+    private ConversationMapper conversationMapper;
+    @Resource
+    private MessageProperties messageProperties;
+
+    /**
+     * 会话ID -> 待写回的最后一条消息（只填充ID、时间、预览、发送者类型）
+     */
+    private final Map<Long, Conversation> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    public void init() {
+        long interval = messageProperties.getActivityFlushIntervalMs();
+        flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flusher.shutdown();
+        flushQuietly();
+    }
+
+    /**
+     * 记录会话有新消息
+     * @param message 已写入的消息
+     */
+    public void touch(Message message) {
+        if (message == null || message.getConversationId() == null) {
+            return;
+        }
+        Conversation latest = new Conversation();
+        latest.setId(message.getConversationId());
+        latest.setLastMessageTime(message.getCreatedAt() == null ? LocalDateTime.now() : message.getCreatedAt());
+        latest.setLastMessage(StrUtil.sub(message.getContent(), 0, PREVIEW_LENGTH));
+        latest.setLastMessageSenderType(message.getSenderType());
+        // 同一时间的消息以后写入的为准
+        pending.merge(latest.getId(), latest,
+                (a, b) -> b.getLastMessageTime().isBefore(a.getLastMessageTime()) ? a : b);
+    }
+
+    /**
+     * 把尚未写回的最后一条消息叠加到单个会话上
+     */
+    public Conversation overlay(Conversation conversation) {
+        if (conversation != null) {
+            apply(conversation);
+        }
+        return conversation;
+    }
+
+    /**
+     * 把尚未写回的最后一条消息叠加到会话列表上，有变化时按列表默认顺序重新排序
+     */
+    public List<Conversation> overlay(List<Conversation> conversations) {
+        if (CollUtil.isEmpty(conversations) || pending.isEmpty()) {
+            return conversations;
+        }
+        boolean changed = false;
+        for (Conversation conversation : conversations) {
+            changed |= apply(conversation);
+        }
+        if (changed) {
+            conversations.sort(LIST_ORDER);
+        }
+        return conversations;
+    }
+
+    private boolean apply(Conversation conversation) {
+        Conversation latest = pending.get(conversation.getId());
+        if (latest == null || (conversation.getLastMessageTime() != null
+                && latest.getLastMessageTime().isBefore(conversation.getLastMessageTime()))) {
+            return false;
+        }
+        conversation.setLastMessageTime(latest.getLastMessageTime());
+        conversation.setLastMessage(latest.getLastMessage());
+        conversation.setLastMessageSenderType(latest.getLastMessageSenderType());
+        return true;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("会话最后消息时间写回失败", e);
+        }
+    }
+
+    /**
+     * 批量写回；写回期间到达的更新留到下一次
+     */
+    private void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Conversation> snapshot = new ArrayList<>(pending.values());
+        for (int from = 0; from < snapshot.size(); from += FLUSH_CHUNK_SIZE) {
+            List<Conversation> chunk = snapshot.subList(from, Math.min(from + FLUSH_CHUNK_SIZE, snapshot.size()));
+            conversationMapper.batchUpdateLastMessage(chunk);
+            // 只移除已写回的值，期间被更新过的会话保留新值
+            for (Conversation conversation : chunk) {
+                pending.remove(conversation.getId(), conversation);
+            }
+        }
+        log.debug("会话最后消息时间已写回 - 会话数: {}", snapshot.size());
+    }
+}
@@ -0,0 +1,357 @@
+package com.chatbot.service.core;
+
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.chatbot.mapper.ConversationMapper;
+import com.chatbot.model.entity.Conversation;
+import com.chatbot.model.entity.Message;
+import jakarta.annotation.Resource;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用户会话列表的Redis索引
+ * 每个用户一个ZSET保存会话排序，列表分页只需一次 ZREVRANGE 加一次批量读取，不再在MySQL中排序；
+ * 会话本身从 {@link EntityCache} 读取，这里只额外保存最后一条消息预览
+ *
+ * <p>数据结构（同一用户的key带相同的hash tag）：</p>
+ * <ul>
+ *     <li>chatbot:conversation:index:{用户ID} —— ZSET，member为会话ID，score = 置顶位(2^42) + 最后消息时间（毫秒）</li>
+ *     <li>chatbot:conversation:index:{用户ID}:preview —— HASH，会话ID -> 最后一条消息JSON（时间、预览、发送者类型）</li>
+ *     <li>chatbot:conversation:index:{用户ID}:version —— 索引不存在期间的写入计数</li>
+ *     <li>chatbot:conversation:index:{用户ID}:empty —— 用户没有会话的标记（空ZSET无法保存），短时间过期，任何写入都会删除</li>
+ * </ul>
+ *
+ * <p>索引在用户第一次查询列表时从MySQL构建，之后由新建会话、发送消息、分段发送与置顶操作直接写入（write-through），
+ * 每次写入都会续期；最后消息时间只会前进不会后退。不活跃的用户过期淘汰，下次查询时重建。
+ * 构建前先读version，只有加载期间没有写入才回填（与 {@link RecentMessageCache} 相同），避免丢失加载期间新建的会话；
+ * 回填失败时本次直接用加载到的数据返回。每次列表请求最多构建一次。</p>
+ * @author Administrator
+ */
+@Slf4j
+@Component
+public class ConversationIndex {
+
+    private static final String INDEX_KEY_PREFIX = "chatbot:conversation:index:";
+
+    private static final long INDEX_TTL_SECONDS = TimeUnit.DAYS.toSeconds(7);
+
+    /**
+     * 空列表标记的过期时间
+     */
+    private static final long EMPTY_TTL_SECONDS = TimeUnit.MINUTES.toSeconds(5);
+
+    /**
+     * 置顶位：毫秒时间戳小于2^42（约公元2109年），置顶会话的score整体高于非置顶会话，且不超出double的精确整数范围
+     */
+    private static final long PINNED_BIT = 1L << 42;
+
+    private static final String PIN = String.valueOf(PINNED_BIT);
+
+    /**
+     * 索引不存在时记录一次写入、删除空列表标记并返回，存在时续期；各写入脚本的开头
+     * KEYS: index, preview, version, empty；ARGV[1]: 过期秒数
+     */
+    private static final String REQUIRE_INDEX = "if redis.call('EXISTS', KEYS[1]) == 0 then "
+            + "  redis.call('INCR', KEYS[3]) "
+            + "  redis.call('EXPIRE', KEYS[3], ARGV[1]) "
+            + "  redis.call('DEL', KEYS[4]) "
+            + "  return 0 "
+            + "end "
+            + "redis.call('EXPIRE', KEYS[1], ARGV[1]) "
+            + "redis.call('EXPIRE', KEYS[2], ARGV[1]) ";
+
+    /**
+     * 索引不存在且加载期间没有写入时批量写入；没有会话时只写入空列表标记
+     * KEYS: index, preview, version, empty；ARGV: 过期秒数, 加载前读到的version, 空列表标记过期秒数, (score, 会话ID, 预览JSON)...
+     */
+    private static final DefaultRedisScript<Long> BUILD_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('EXISTS', KEYS[1]) == 1 then return 0 end "
+            + "local v = redis.call('GET', KEYS[3]) "
+            + "if (v or '') ~= ARGV[2] then return 0 end "
+            + "if #ARGV < 4 then "
+            + "  redis.call('SET', KEYS[4], '1', 'EX', ARGV[3]) "
+            + "  return 1 "
+            + "end "
+            + "for i = 4, #ARGV, 3 do "
+            + "  redis.call('ZADD', KEYS[1], ARGV[i], ARGV[i + 1]) "
+            + "  if ARGV[i + 2] ~= '' then redis.call('HSET', KEYS[2], ARGV[i + 1], ARGV[i + 2]) end "
+            + "end "
+            + "redis.call('EXPIRE', KEYS[1], ARGV[1]) "
+            + "redis.call('EXPIRE', KEYS[2], ARGV[1]) "
+            + "return 1", Long.class);
+
+    /**
+     * 加入新会话
+     * KEYS: index, preview, version, empty；ARGV: 过期秒数, 会话ID, score
+     */
+    private static final DefaultRedisScript<Long> ADD_SCRIPT = new DefaultRedisScript<>(REQUIRE_INDEX
+            + "redis.call('ZADD', KEYS[1], ARGV[3], ARGV[2]) "
+            + "return 1", Long.class);
+
+    /**
+     * 会话有新消息：保留置顶位，最后消息时间与预览只前进
+     * KEYS: index, preview, version, empty；ARGV: 过期秒数, 会话ID, 消息时间（毫秒）, 预览JSON
+     */
+    private static final DefaultRedisScript<Long> TOUCH_SCRIPT = new DefaultRedisScript<>(REQUIRE_INDEX
+            + "local s = redis.call('ZSCORE', KEYS[1], ARGV[2]) "
+            + "if not s then return 0 end "
+            + "s = tonumber(s) "
+            + "local pinned = 0 "
+            + "if s >= " + PIN + " then pinned = " + PIN + " end "
+            + "local t = tonumber(ARGV[3]) "
+            + "if s - pinned < t then redis.call('ZADD', KEYS[1], string.format('%.0f', pinned + t), ARGV[2]) end "
+            + "local p = redis.call('HGET', KEYS[2], ARGV[2]) "
+            + "if not p or tonumber(cjson.decode(p).lastMessageTime) <= t then redis.call('HSET', KEYS[2], ARGV[2], ARGV[4]) end "
+            + "return 1", Long.class);
+
+    /**
+     * 修改置顶位，保留已有的最后消息时间（取索引与数据库中较新的一个）
+     * KEYS: index, preview, version, empty；ARGV: 过期秒数, 会话ID, 置顶(0/1), 最后消息时间（毫秒）
+     */
+    private static final DefaultRedisScript<Long> PIN_SCRIPT = new DefaultRedisScript<>(REQUIRE_INDEX
+            + "local s = redis.call('ZSCORE', KEYS[1], ARGV[2]) "
+            + "if not s then return 0 end "
+            + "local t = tonumber(s) % " + PIN + " "
+            + "if t < tonumber(ARGV[4]) then t = tonumber(ARGV[4]) end "
+            + "redis.call('ZADD', KEYS[1], string.format('%.0f', tonumber(ARGV[3]) * " + PIN + " + t), ARGV[2]) "
+            + "return 1", Long.class);
+
+    /**
+     * 移除会话
+     * KEYS: index, preview, version, empty；ARGV: 过期秒数, 会话ID
+     */
+    private static final DefaultRedisScript<Long> REMOVE_SCRIPT = new DefaultRedisScript<>(REQUIRE_INDEX
+            + "redis.call('ZREM', KEYS[1], ARGV[2]) "
+            + "redis.call('HDEL', KEYS[2], ARGV[2]) "
+            + "return 1", Long.class);
+
+    private static final String TTL = String.valueOf(INDEX_TTL_SECONDS);
+    private static final String EMPTY_TTL = String.valueOf(EMPTY_TTL_SECONDS);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ConversationMapper conversationMapper;
+    @Resource
+    private ConversationActivityTracker conversationActivityTracker;
+    @Resource
+    private EntityCache entityCache;
+
+    /**
+     * 分页查询用户的会话（置顶优先，其次按最后消息时间倒序）
+     * @param offset 起始位置
+     * @param size 条数
+     * @return 当前页会话与会话总数
+     */
+    public Page page(Long userId, long offset, int size) {
+        List<Conversation> loaded = ensureIndex(userId);
+        if (loaded != null) {
+            if (offset >= loaded.size()) {
+                return new Page(loaded.size(), Collections.emptyList());
+            }
+            return new Page(loaded.size(),
+                    new ArrayList<>(loaded.subList((int) offset, (int) Math.min(offset + size, loaded.size()))));
+        }
+        String indexKey = indexKey(userId);
+        Long total = stringRedisTemplate.opsForZSet().zCard(indexKey);
+        Set<String> members = stringRedisTemplate.opsForZSet().reverseRange(indexKey, offset, offset + size - 1);
+        if (CollUtil.isEmpty(members)) {
+            return new Page(total == null ? 0 : total, Collections.emptyList());
+        }
+        List<Long> ids = new ArrayList<>(members.size());
+        for (String member : members) {
+            ids.add(Long.valueOf(member));
+        }
+        Map<Long, Conversation> found = entityCache.getConversations(ids);
+        List<Object> previews = stringRedisTemplate.opsForHash().multiGet(previewKey(userId), new ArrayList<>(members));
+        List<Conversation> conversations = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Long id = ids.get(i);
+            Conversation conversation = found.get(id);
+            if (conversation == null || !userId.equals(conversation.getUserId())) {
+                // 会话已被删除（例如随角色级联删除），顺手从索引中移除
+                remove(userId, id);
+                continue;
+            }
+            applyPreview(conversation, previews.get(i));
+            conversations.add(conversationActivityTracker.overlay(conversation));
+        }
+        return new Page(total == null ? 0 : total, conversations);
+    }
+
+    /**
+     * 新建会话后加入索引
+     */
+    public void add(Conversation conversation) {
+        stringRedisTemplate.execute(ADD_SCRIPT, keys(conversation.getUserId()),
+                TTL, String.valueOf(conversation.getId()), score(conversation));
+    }
+
+    /**
+     * 消息落库后更新会话排序与最后一条消息预览
+     * @param userId 会话所属用户
+     * @param message 已写入的消息
+     */
+    public void touch(Long userId, Message message) {
+        LocalDateTime time = message.getCreatedAt() == null ? LocalDateTime.now() : message.getCreatedAt();
+        stringRedisTemplate.execute(TOUCH_SCRIPT, keys(userId), TTL, String.valueOf(message.getConversationId()),
+                String.valueOf(toMillis(time)), preview(time, message.getContent(), message.getSenderType()));
+    }
+
+    /**
+     * 置顶状态变更后更新排序
+     */
+    public void updatePinned(Conversation conversation) {
+        stringRedisTemplate.execute(PIN_SCRIPT, keys(conversation.getUserId()), TTL,
+                String.valueOf(conversation.getId()), Boolean.TRUE.equals(conversation.getIsPinned()) ? "1" : "0",
+                String.valueOf(toMillis(conversation.getLastMessageTime())));
+    }
+
+    /**
+     * 会话删除后移出索引
+     */
+    public void remove(Long userId, Long conversationId) {
+        stringRedisTemplate.execute(REMOVE_SCRIPT, keys(userId), TTL, String.valueOf(conversationId));
+    }
+
+    /**
+     * 索引不存在时从MySQL构建（仅此时按用户全量查询一次）
+     * @return 索引已存在时返回 null；否则返回从MySQL加载的全部会话（已按列表顺序排列），调用方直接用它应答本次请求；
+     * 有空列表标记时返回空列表
+     */
+    private List<Conversation> ensureIndex(Long userId) {
+        // 空列表标记与version一次读取
+        List<String> state = stringRedisTemplate.opsForValue()
+                .multiGet(Arrays.asList(emptyKey(userId), versionKey(userId)));
+        if (state != null && state.get(0) != null) {
+            return Collections.emptyList();
+        }
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(indexKey(userId)))) {
+            return null;
+        }
+        String version = state == null ? null : state.get(1);
+        List<Conversation> conversations = conversationActivityTracker.overlay(conversationMapper.selectByUserId(userId));
+        List<String> args = new ArrayList<>(conversations.size() * 3 + 3);
+        args.add(TTL);
+        args.add(version == null ? "" : version);
+        args.add(EMPTY_TTL);
+        for (Conversation conversation : conversations) {
+            args.add(score(conversation));
+            args.add(String.valueOf(conversation.getId()));
+            args.add(conversation.getLastMessageTime() == null ? "" : preview(conversation.getLastMessageTime(),
+                    conversation.getLastMessage(), conversation.getLastMessageSenderType()));
+        }
+        Long built = stringRedisTemplate.execute(BUILD_SCRIPT, keys(userId), args.toArray());
+        log.debug("会话索引构建 - 用户ID: {}, 会话数: {}, 结果: {}", userId, conversations.size(), built);
+        return conversations;
+    }
+
+    /**
+     * 预览比实体缓存中的最后一条消息新时覆盖到会话上
+     */
+    private static void applyPreview(Conversation conversation, Object value) {
+        if (value == null) {
+            return;
+        }
+        JSONObject preview = JSONUtil.parseObj(String.valueOf(value));
+        LocalDateTime time = fromMillis(preview.getStr("lastMessageTime"));
+        if (time == null || (conversation.getLastMessageTime() != null && time.isBefore(conversation.getLastMessageTime()))) {
+            return;
+        }
+        conversation.setLastMessageTime(time);
+        conversation.setLastMessage(StrUtil.emptyToNull(preview.getStr("lastMessage")));
+        conversation.setLastMessageSenderType(senderType(preview.getStr("lastMessageSenderType")));
+    }
+
+    private static String preview(LocalDateTime time, String content, Message.SenderType senderType) {
+        JSONObject json = new JSONObject();
+        json.set("lastMessageTime", toMillis(time));
+        json.set("lastMessage", StrUtil.sub(StrUtil.nullToEmpty(content), 0, ConversationActivityTracker.PREVIEW_LENGTH));
+        json.set("lastMessageSenderType", senderType == null ? "" : senderType.getCode());
+        return json.toString();
+    }
+
+    private static Message.SenderType senderType(String code) {
+        for (Message.SenderType type : Message.SenderType.values()) {
+            if (type.getCode().equals(code)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    private static String score(Conversation conversation) {
+        long score = toMillis(conversation.getLastMessageTime());
+        if (Boolean.TRUE.equals(conversation.getIsPinned())) {
+            score += PINNED_BIT;
+        }
+        return String.valueOf(score);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time == null ? 0 : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime fromMillis(String millis) {
+        if (StrUtil.isBlank(millis) || "0".equals(millis)) {
+            return null;
+        }
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(Long.parseLong(millis)), ZoneId.systemDefault());
+    }
+
+    private static List<String> keys(Long userId) {
+        return Arrays.asList(indexKey(userId), previewKey(userId), versionKey(userId), emptyKey(userId));
+    }
+
+    private static String indexKey(Long userId) {
+        return INDEX_KEY_PREFIX + "{" + userId + "}";
+    }
+
+    private static String previewKey(Long userId) {
+        return indexKey(userId) + ":preview";
+    }
+
+    private static String versionKey(Long userId) {
+        return indexKey(userId) + ":version";
+    }
+
+    private static String emptyKey(Long userId) {
+        return indexKey(userId) + ":empty";
+    }
+
+    /**
+     * 一页会话
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Page {
+
+        /**
+         * 用户的会话总数
+         */
+        private final long total;
+
+        /**
+         * 当前页会话
+         */
+        private final List<Conversation> conversations;
+    }
+}
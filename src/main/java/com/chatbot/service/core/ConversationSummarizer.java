@@ -0,0 +1,266 @@
+package com.chatbot.service.core;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.util.StrUtil;
+import com.chatbot.common.properties.AiProperties;
+import com.chatbot.mapper.ConversationSummaryMapper;
+import com.chatbot.mapper.MessageMapper;
+import com.chatbot.model.entity.ConversationSummary;
+import com.chatbot.model.entity.Message;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 会话滚动摘要服务
+ * 每隔N轮对话，异步把已移出上下文窗口的历史消息增量折叠进摘要，
+ * 摘要随后作为补充的 System Message 放入Prompt，使长对话保持连贯且Prompt大小不随历史增长
+ *
+ * <p>每次只折叠上次进度之后、当前窗口之前的消息，从不基于全量历史重新生成。
+ * 后台折叠通过 {@link LlmDispatcher#submitBackground} 以低权重提交，与用户的生成任务共用并发上限。</p>
+ *
+ * <p>窗口前移后、折叠完成前，窗口之前尚未折叠的消息（{@link #unfolded}）既不在摘要里也不在窗口里，
+ * 由调用方放回Prompt；放不下时调用 {@link #foldNow} 在当前生成任务中同步折叠一批，剩余的仍交给后台折叠。</p>
+ * @author Administrator
+ */
+@Slf4j
+@Service
+public class ConversationSummarizer {
+
+    private static final int SUMMARY_CACHE_CAPACITY = 10_000;
+    private static final long SUMMARY_CACHE_TIMEOUT_MS = 10 * 60 * 1000L;
+    private static final int TURN_COUNTER_CAPACITY = 100_000;
+
+    /**
+     * 单次后台任务最多折叠的批次数，剩余的留给下一次任务（首次折叠超长历史时避免长时间占用线程）
+     */
+    private static final int MAX_BATCHES_PER_RUN = 5;
+
+    /**
+     * 同步折叠最多折叠的批次数；同步折叠阻塞在用户回复之前，只做一次LLM调用
+     */
+    private static final int MAX_BATCHES_SYNC = 1;
+
+    private static final String SUMMARY_INSTRUCTION = "你负责维护一段角色扮演聊天的长期记忆摘要。"
+            + "请把【新增对话】中的重要信息合并进【已有摘要】，输出更新后的完整摘要。\n"
+            + "要求：\n"
+            + "1. 保留用户的个人信息、喜好、重要事件、双方的约定以及关系的变化；\n"
+            + "2. 省略寒暄和无关紧要的细节；\n"
+            + "3. 使用第三人称陈述句，总字数不超过300字；\n"
+            + "4. 只输出摘要正文，不要输出任何解释。";
+
+    @Resource
+    private ChatModel chatModel;
+    @Resource
+    private ConversationSummaryMapper conversationSummaryMapper;
+    @Resource
+    private MessageMapper messageMapper;
+    @Resource
+    private AiProperties aiProperties;
+    @Resource
+    private LlmDispatcher llmDispatcher;
+
+    /**
+     * 会话ID -> 摘要与折叠进度（暂无摘要时字段为空）
+     */
+    private final LRUCache<Long, ConversationSummary> summaryCache = CacheUtil.newLRUCache(SUMMARY_CACHE_CAPACITY, SUMMARY_CACHE_TIMEOUT_MS);
+
+    /**
+     * 会话ID -> 对话轮数计数
+     */
+    private final LRUCache<Long, AtomicInteger> turnCounters = CacheUtil.newLRUCache(TURN_COUNTER_CAPACITY);
+
+    /**
+     * 已提交后台折叠的会话，避免同一会话重复提交
+     */
+    private final Set<Long> running = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 正在执行折叠（后台或同步）的会话；同一会话同一时刻只有一个折叠，其他会话互不影响
+     */
+    private final Set<Long> folding = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 获取会话当前的摘要
+     * @param conversationId 会话ID
+     * @return 摘要内容；暂无摘要或未启用时返回null
+     */
+    public String getSummary(Long conversationId) {
+        if (!aiProperties.getSummary().isEnabled()) {
+            return null;
+        }
+        return StrUtil.emptyToNull(current(conversationId).getSummary());
+    }
+
+    /**
+     * 从窗口之前的消息中挑出尚未折叠进摘要的部分
+     * @param conversationId 会话ID
+     * @param outsideWindow 已加载但不在上下文窗口中的消息（按时间正序，紧挨窗口起点）
+     * @param truncated 加载的消息之前是否还有更早的消息
+     * @return 尚未折叠的消息（按时间正序）；未折叠的部分超出了已加载的范围时返回 null，调用方应同步折叠
+     */
+    public List<Message> unfolded(Long conversationId, List<Message> outsideWindow, boolean truncated) {
+        if (!aiProperties.getSummary().isEnabled() || CollUtil.isEmpty(outsideWindow)) {
+            return Collections.emptyList();
+        }
+        long foldedUpTo = foldedUpTo(current(conversationId));
+        int start = outsideWindow.size();
+        while (start > 0 && isAfter(outsideWindow.get(start - 1), foldedUpTo)) {
+            start--;
+        }
+        if (start == 0 && truncated && isAfter(outsideWindow.get(0), foldedUpTo)) {
+            // 最早加载的消息也未折叠，更早的消息可能同样未折叠
+            return null;
+        }
+        return outsideWindow.subList(start, outsideWindow.size());
+    }
+
+    /**
+     * 同步把窗口之前最早的一批未折叠消息折叠进摘要（在调用方的生成任务中执行，已计入LLM并发上限）
+     * 该会话正在折叠时不等待，直接返回当前摘要；剩余未折叠的消息由调用方通过 {@link #onTurn} 交给后台
+     * @param conversationId 会话ID
+     * @param windowStartMessageId 上下文窗口中最早一条消息的ID
+     * @return 折叠后的摘要；未启用时返回null
+     */
+    public String foldNow(Long conversationId, Long windowStartMessageId) {
+        if (!aiProperties.getSummary().isEnabled()) {
+            return null;
+        }
+        try {
+            fold(conversationId, windowStartMessageId, MAX_BATCHES_SYNC);
+        } catch (Exception e) {
+            log.error("会话摘要同步折叠失败 - 会话ID: {}", conversationId, e);
+        }
+        return getSummary(conversationId);
+    }
+
+    /**
+     * 记录一轮对话，每满N轮或窗口之前有未折叠的消息时触发一次后台折叠
+     * @param conversationId 会话ID
+     * @param windowStartMessageId 本轮上下文窗口中最早一条消息的ID，早于它的消息才会被折叠
+     * @param behind 窗口之前是否有尚未折叠的消息
+     */
+    public void onTurn(Long conversationId, Long windowStartMessageId, boolean behind) {
+        AiProperties.Summary config = aiProperties.getSummary();
+        if (!config.isEnabled() || conversationId == null || windowStartMessageId == null) {
+            return;
+        }
+        AtomicInteger turns = turnCounters.get(conversationId, AtomicInteger::new);
+        if (turns.incrementAndGet() % config.getEveryTurns() != 0 && !behind) {
+            return;
+        }
+        if (!running.add(conversationId)) {
+            return;
+        }
+        try {
+            llmDispatcher.submitBackground(() -> {
+                try {
+                    fold(conversationId, windowStartMessageId, MAX_BATCHES_PER_RUN);
+                } catch (Exception e) {
+                    log.error("会话摘要折叠失败 - 会话ID: {}", conversationId, e);
+                } finally {
+                    running.remove(conversationId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 下一轮对话时重试，期间未折叠的消息由调用方放回Prompt
+            running.remove(conversationId);
+            log.warn("LLM调度队列已满，推迟会话摘要折叠 - 会话ID: {}", conversationId);
+        }
+    }
+
+    private ConversationSummary current(Long conversationId) {
+        ConversationSummary summary = summaryCache.get(conversationId);
+        if (summary == null) {
+            ConversationSummary saved = conversationSummaryMapper.selectByConversationId(conversationId);
+            summary = saved != null ? saved : ConversationSummary.builder().conversationId(conversationId).build();
+            summaryCache.put(conversationId, summary);
+        }
+        return summary;
+    }
+
+    private static boolean isAfter(Message message, long messageId) {
+        return message.getId() == null || message.getId() > messageId;
+    }
+
+    private static long foldedUpTo(ConversationSummary summary) {
+        return summary.getLastMessageId() == null ? 0L : summary.getLastMessageId();
+    }
+
+    /**
+     * 把 (上次折叠进度, windowStartMessageId) 区间内的消息分批折叠进摘要；该会话正在折叠时直接返回
+     * @param maxBatches 本次最多折叠的批次数
+     */
+    private void fold(Long conversationId, Long windowStartMessageId, int maxBatches) {
+        if (!folding.add(conversationId)) {
+            log.debug("会话摘要正在折叠，跳过本次 - 会话ID: {}", conversationId);
+            return;
+        }
+        try {
+            foldBatches(conversationId, windowStartMessageId, maxBatches);
+        } finally {
+            folding.remove(conversationId);
+        }
+    }
+
+    private void foldBatches(Long conversationId, Long windowStartMessageId, int maxBatches) {
+        ConversationSummary current = conversationSummaryMapper.selectByConversationId(conversationId);
+        String summary = current == null ? null : current.getSummary();
+        long lastMessageId = current == null || current.getLastMessageId() == null ? 0L : current.getLastMessageId();
+        int batchSize = aiProperties.getSummary().getBatchMessages();
+
+        for (int batch = 0; batch < maxBatches; batch++) {
+            List<Message> messages = messageMapper.selectRangeByConversationId(conversationId, lastMessageId, windowStartMessageId, batchSize);
+            if (CollUtil.isEmpty(messages)) {
+                break;
+            }
+            summary = summarize(summary, messages);
+            lastMessageId = messages.get(messages.size() - 1).getId();
+
+            ConversationSummary updated = ConversationSummary.builder()
+                    .conversationId(conversationId)
+                    .summary(summary)
+                    .lastMessageId(lastMessageId)
+                    .build();
+            conversationSummaryMapper.upsert(updated);
+            summaryCache.put(conversationId, updated);
+            log.info("会话摘要已更新 - 会话ID: {}, 折叠消息数: {}, 折叠进度: {}", conversationId, messages.size(), lastMessageId);
+
+            if (messages.size() < batchSize) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 调用LLM把新消息合并进已有摘要
+     */
+    private String summarize(String previous, List<Message> messages) {
+        StringBuilder input = new StringBuilder();
+        input.append("【已有摘要】\n").append(StrUtil.isBlank(previous) ? "（无）" : previous).append("\n\n");
+        input.append("【新增对话】\n");
+        for (Message message : messages) {
+            input.append(Message.SenderType.USER.equals(message.getSenderType()) ? "用户" : "角色")
+                    .append("：")
+                    .append(message.getContent())
+                    .append('\n');
+        }
+
+        Prompt prompt = new Prompt(List.of(new SystemMessage(SUMMARY_INSTRUCTION), new UserMessage(input.toString())));
+        String text = chatModel.call(prompt).getResult().getOutput().getText();
+        return StrUtil.isBlank(text) ? previous : text.trim();
+    }
+}
@@ -0,0 +1,166 @@
+package com.chatbot.service.core;
+
+import cn.hutool.core.util.StrUtil;
+import com.chatbot.common.properties.CacheProperties;
+import com.chatbot.mapper.AiCharacterMapper;
+import com.chatbot.mapper.ConversationMapper;
+import com.chatbot.model.entity.AiCharacter;
+import com.chatbot.model.entity.Conversation;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * AI角色与会话的主键缓存
+ * 每个节点一份本地缓存，节点间共享一份Redis缓存；修改数据后删除两级缓存，并通过Redis发布订阅通知其他节点删除本地缓存
+ *
+ * <p>在事务中修改数据时，缓存在事务提交后才删除，避免并发读取把未提交前的旧数据重新放回缓存。</p>
+ * @author Administrator
+ */
+@Slf4j
+@Component
+public class EntityCache {
+
+    /**
+     * 失效通知频道，消息格式：缓存名:ID
+     */
+    private static final String INVALIDATE_CHANNEL = "chatbot:cache:invalidate";
+
+    private static final String AI_CHARACTER = "aiCharacter";
+    private static final String CONVERSATION = "conversation";
+
+    @Resource
+    private AiCharacterMapper aiCharacterMapper;
+    @Resource
+    private ConversationMapper conversationMapper;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private ObjectMapper objectMapper;
+    @Resource
+    private CacheProperties cacheProperties;
+
+    private final MeterRegistry meterRegistry;
+
+    private TwoLevelCache<AiCharacter> aiCharacters;
+    private TwoLevelCache<Conversation> conversations;
+
+    public EntityCache(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        this.aiCharacters = create(AI_CHARACTER, AiCharacter.class, aiCharacterMapper::selectById, null);
+        this.conversations = create(CONVERSATION, Conversation.class, conversationMapper::selectById,
+                ids -> conversationMapper.selectByIds(ids).stream()
+                        .collect(Collectors.toMap(Conversation::getId, Function.identity())));
+        MessageListener listener = (message, pattern) -> onInvalidate(new String(message.getBody(), StandardCharsets.UTF_8));
+        redisMessageListenerContainer.addMessageListener(listener, new ChannelTopic(INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 按ID查询AI角色（返回的对象可以修改）
+     */
+    public AiCharacter getAiCharacter(Long id) {
+        return aiCharacters.get(id);
+    }
+
+    /**
+     * 按ID查询会话（返回的对象可以修改）
+     *
+     * <p>最后一条消息相关字段以数据库为准，可能落后于 {@link ConversationActivityTracker} 中尚未写回的值，需要时自行叠加。</p>
+     */
+    public Conversation getConversation(Long id) {
+        return conversations.get(id);
+    }
+
+    /**
+     * 批量查询会话（会话列表分页使用），最后一条消息相关字段同 {@link #getConversation(Long)}
+     * @return 会话ID -> 会话，不存在的会话不在结果中
+     */
+    public Map<Long, Conversation> getConversations(List<Long> ids) {
+        return conversations.getAll(ids);
+    }
+
+    /**
+     * AI角色被修改或删除后调用
+     */
+    public void evictAiCharacter(Long id) {
+        evict(aiCharacters, id);
+    }
+
+    /**
+     * 会话被修改或删除后调用
+     */
+    public void evictConversation(Long id) {
+        evict(conversations, id);
+    }
+
+    private <V> TwoLevelCache<V> create(String name, Class<V> type, Function<Long, V> loader,
+                                        Function<List<Long>, Map<Long, V>> batchLoader) {
+        return new TwoLevelCache<>(name, type, loader, batchLoader, stringRedisTemplate, objectMapper,
+                cacheProperties.getLocalMaximumSize(), cacheProperties.getLocalTtlSeconds(),
+                cacheProperties.getRedisTtlSeconds(), meterRegistry);
+    }
+
+    private void evict(TwoLevelCache<?> cache, Long id) {
+        if (id == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    evictAndBroadcast(cache, id);
+                }
+            });
+        } else {
+            evictAndBroadcast(cache, id);
+        }
+    }
+
+    private void evictAndBroadcast(TwoLevelCache<?> cache, Long id) {
+        cache.evict(id);
+        try {
+            stringRedisTemplate.convertAndSend(INVALIDATE_CHANNEL, cache.getName() + ":" + id);
+        } catch (Exception e) {
+            log.warn("广播缓存失效失败，其他节点的本地缓存将在过期后自愈 - 缓存: {}, ID: {}", cache.getName(), id, e);
+        }
+    }
+
+    /**
+     * 收到失效通知（包括本节点自己发出的）后删除本地缓存
+     */
+    private void onInvalidate(String body) {
+        String name = StrUtil.subBefore(body, ":", true);
+        String id = StrUtil.subAfter(body, ":", true);
+        TwoLevelCache<?> cache = switch (name) {
+            case AI_CHARACTER -> aiCharacters;
+            case CONVERSATION -> conversations;
+            default -> null;
+        };
+        if (cache == null || !StrUtil.isNumeric(id)) {
+            log.warn("无法识别的缓存失效通知: {}", body);
+            return;
+        }
+        cache.evictLocal(Long.valueOf(id));
+    }
+}
@@ -1,27 +1,52 @@
 package com.chatbot.service.core;
 
 import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.util.IdUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.chatbot.handler.ChatWebSocketHandler;
-import com.chatbot.mapper.ConversationMapper;
+import com.chatbot.common.properties.AiProperties;
+import com.chatbot.common.util.HashedTimingWheel;
 import com.chatbot.mapper.MessageMapper;
 import com.chatbot.model.entity.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * 拟人化分段发送调度器
+ * 按分段长度模拟打字延迟，逐段落库并推送给用户
+ *
+ * <p>待发送分段存放在 {@link RedisDeliveryQueue} 中，重启或多节点部署不会丢失回复，同一会话的分段严格按顺序发送。
+ * 各节点定期认领到期分段，落库与推送在独立的I/O线程池执行；本节点入队或确认分段后，
+ * 用哈希时间轮在下一段到期时立即唤醒一次认领，打字延迟的精度不受轮询间隔影响。</p>
+ *
+ * <p>本节点提交的分段在本地登记取消凭证与完成Future，供 {@link AiReplyCoordinator} 判断本轮是否发送完毕。
+ * Future只在分段被确认或取消后完成：本节点发送的分段在确认时完成；分段可能由其他节点发送，
+ * 因此在会话队列中最后一段的预计发送时间之后检查分段是否仍在Redis队列中，仍在则稍后再查，不会提前完成。</p>
+ *
+ * <p>投递是至少一次的（落库后、确认前宕机会被其他节点重新认领），AI消息以分段ID作为投递ID写入，
+ * 重复投递时复用已写入的消息，不会重复落库。</p>
  * @author Administrator
  */
 @Slf4j
@@ -32,77 +57,338 @@ public class HumanLikeScheduler {
     private static final long FACTOR_MS = 50;
     private static final long MAX_DELAY_MS = 10_000;
 
+    /**
+     * 时间轮精度10ms，1024个槽位一圈约10秒
+     */
+    private static final long TICK_MS = 10;
+    private static final int TICKS_PER_WHEEL = 1024;
+
+    /**
+     * 单次轮询最多连续认领的批次数
+     */
+    private static final int MAX_CLAIM_ROUNDS = 10;
+
+    /**
+     * 分段过了预计发送时间仍在队列中时，再次检查的间隔
+     */
+    private static final long PENDING_RECHECK_MS = 1_000;
+
     @Resource
-    private ChatWebSocketHandler chatWebSocketHandler;
+    private WebSocketRouter webSocketRouter;
     @Resource
-    private MessageMapper messageMapper;
+    private MessageWriteBuffer messageWriteBuffer;
+    @Resource
+    private AiProperties aiProperties;
     @Resource
-    private ConversationMapper conversationMapper;
+    private RedisDeliveryQueue redisDeliveryQueue;
+    @Resource
+    private ConversationIndex conversationIndex;
+    @Resource
+    private MessageMapper messageMapper;
+
+    private final MeterRegistry meterRegistry;
+
+    private final HashedTimingWheel timingWheel = new HashedTimingWheel("human-like-timer", TICK_MS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean pollRequested = new AtomicBoolean();
+    private ExecutorService ioExecutor;
 
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
-    private final Map<Long, CompletableFuture<Void>> chains = new ConcurrentHashMap<>();
+    /**
+     * 会话ID -> (分段ID -> 本地登记)；会话的分段全部完成即移除
+     */
+    private final Map<Long, Map<String, LocalSegment>> localSegments = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingSegments = new AtomicInteger();
+
+    private Timer deliveryLag;
+    private Counter dropped;
+
+    public HumanLikeScheduler(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        AiProperties.Delivery config = aiProperties.getDelivery();
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.ioExecutor = Executors.newFixedThreadPool(config.getIoThreads(), r -> {
+            Thread thread = new Thread(r, "delivery-io-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.deliveryLag = meterRegistry.timer("chatbot.ai.delivery.lag");
+        this.dropped = meterRegistry.counter("chatbot.ai.delivery.dropped");
+        Gauge.builder("chatbot.ai.delivery.pending", pendingSegments, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("chatbot.ai.delivery.conversations", localSegments, Map::size).register(meterRegistry);
+        poller.scheduleWithFixedDelay(this::poll, config.getPollIntervalMs(), config.getPollIntervalMs(), TimeUnit.MILLISECONDS);
+    }
 
     @PreDestroy
-    public void shutdown() {
-        scheduler.shutdown();
+    public void shutdown() throws InterruptedException {
+        // 已认领未确认的分段在租约到期后由其他节点重新发送
+        poller.shutdown();
+        timingWheel.stop();
+        ioExecutor.shutdown();
+        if (!ioExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+            ioExecutor.shutdownNow();
+        }
     }
 
-    public void enqueueAiReply(Long userId, Long conversationId, List<String> segments) {
-        if (userId == null || conversationId == null || CollUtil.isEmpty(segments)) {
-            return;
+    /**
+     * 将AI回复分段加入会话的发送队列
+     * @param ticket 本轮回复的取消凭证；被取消后尚未发出的分段直接丢弃
+     * @return 本次加入的分段全部发送完毕后完成的Future
+     */
+    public CompletableFuture<Void> enqueueAiReply(Long userId, Long conversationId, List<String> segments, ReplyTicket ticket) {
+        if (userId == null || conversationId == null || CollUtil.isEmpty(segments) || ticket.isCancelled()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (pendingSegments.get() + segments.size() > aiProperties.getDelivery().getMaxPendingSegments()) {
+            dropped.increment(segments.size());
+            log.warn("待发送分段已达上限，丢弃本次回复 - 会话ID: {}, 分段数: {}", conversationId, segments.size());
+            return CompletableFuture.completedFuture(null);
         }
-        
-        log.debug("加入发送队列 - 会话ID: {}, 分段数: {}", conversationId, segments.size());
-        
+
+        List<String> segmentIds = new ArrayList<>(segments.size());
+        List<Long> delays = new ArrayList<>(segments.size());
+        List<String> payloads = new ArrayList<>(segments.size());
+        List<LocalSegment> registered = new ArrayList<>(segments.size());
         for (int i = 0; i < segments.size(); i++) {
-            String segment = segments.get(i);
-            if (segment == null) {
+            String content = segments.get(i);
+            if (content == null) {
                 continue;
             }
-            int segmentIndex = i + 1;
-            enqueue(conversationId, () -> sendAiSegment(userId, conversationId, segment, segmentIndex, segments.size()));
+            String segmentId = IdUtil.fastSimpleUUID();
+            long delayMs = computeDelayMs(content);
+
+            JSONObject payload = new JSONObject();
+            payload.set("id", segmentId);
+            payload.set("conversationId", conversationId);
+            payload.set("userId", userId);
+            payload.set("content", content);
+            payload.set("index", i + 1);
+            payload.set("total", segments.size());
+            payload.set("delayMs", delayMs);
+            segmentIds.add(segmentId);
+            delays.add(delayMs);
+            payloads.add(JSONUtil.toJsonStr(payload));
+
+            registered.add(register(conversationId, segmentId, ticket));
+        }
+        if (payloads.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        try {
+            RedisDeliveryQueue.EnqueueResult result = redisDeliveryQueue.enqueue(conversationId, segmentIds, delays, payloads);
+            if (result.getHeadDelayMs() >= 0) {
+                wakeUpAfter(result.getHeadDelayMs());
+            }
+            // 本次的分段排在会话已有的待发送分段之后，到最后一段的预计发送时间才开始检查是否已发出
+            for (LocalSegment segment : registered) {
+                scheduleCheck(conversationId, segment, result.getLastDueInMs() + PENDING_RECHECK_MS);
+            }
+            log.debug("加入发送队列 - 会话ID: {}, 分段数: {}, 预计发送完毕: {}ms后", conversationId, payloads.size(), result.getLastDueInMs());
+        } catch (Exception e) {
+            log.error("分段加入发送队列失败 - 会话ID: {}", conversationId, e);
+            for (LocalSegment segment : registered) {
+                complete(conversationId, segment.segmentId);
+            }
         }
+        return registered.get(registered.size() - 1).future;
     }
 
-    private void enqueue(Long conversationId, java.util.function.Supplier<CompletableFuture<Void>> supplier) {
-        chains.compute(conversationId, (k, prev) -> {
-            CompletableFuture<Void> base = prev == null ? CompletableFuture.completedFuture(null) : prev;
-            return base.handle((v, e) -> null).thenCompose(ignored -> supplier.get());
+    /**
+     * 丢弃会话发送队列中尚未发出的分段（所有节点生效）
+     * @param conversationId 会话ID
+     */
+    public void cancel(Long conversationId) {
+        try {
+            redisDeliveryQueue.cancel(conversationId);
+        } catch (Exception e) {
+            log.error("清空发送队列失败 - 会话ID: {}", conversationId, e);
+        }
+        Map<String, LocalSegment> removed = localSegments.remove(conversationId);
+        if (removed != null) {
+            for (LocalSegment segment : removed.values()) {
+                finish(segment);
+            }
+            log.debug("已清空发送队列 - 会话ID: {}, 丢弃分段数: {}", conversationId, removed.size());
+        }
+    }
+
+    /**
+     * 在本地登记分段
+     */
+    private LocalSegment register(Long conversationId, String segmentId, ReplyTicket ticket) {
+        LocalSegment segment = new LocalSegment(segmentId, ticket);
+        localSegments.compute(conversationId, (id, segments) -> {
+            Map<String, LocalSegment> registered = segments == null ? new ConcurrentHashMap<>() : segments;
+            registered.put(segmentId, segment);
+            return registered;
         });
+        pendingSegments.incrementAndGet();
+        return segment;
     }
 
-    private CompletableFuture<Void> sendAiSegment(Long userId, Long conversationId, String segment, int segmentIndex, int totalSegments) {
-        long delayMs = computeDelayMs(segment);
-        log.debug("分段 [{}/{}] 将在 {}ms 后发送", segmentIndex, totalSegments, delayMs);
-        
-        return delay(delayMs).thenRun(() -> {
-            LocalDateTime now = LocalDateTime.now();
-            Message aiMessage = new Message();
-            aiMessage.setConversationId(conversationId);
-            aiMessage.setSenderType(Message.SenderType.AI);
-            aiMessage.setContent(segment);
-            aiMessage.setCreatedAt(now);
-            messageMapper.insert(aiMessage);
+    /**
+     * 到时检查分段是否已被发送（可能由其他节点发送，本节点收不到确认）
+     */
+    private void scheduleCheck(Long conversationId, LocalSegment segment, long delayMs) {
+        segment.fallback = timingWheel.schedule(() -> ioExecutor.execute(() -> checkPending(conversationId, segment)),
+                delayMs, TimeUnit.MILLISECONDS);
+    }
 
-            conversationMapper.updateLastMessageTime(conversationId, userId, now);
+    /**
+     * 分段已不在Redis队列中（已确认或已取消）时完成本地登记，否则稍后再查
+     */
+    private void checkPending(Long conversationId, LocalSegment segment) {
+        Map<String, LocalSegment> local = localSegments.get(conversationId);
+        if (local == null || local.get(segment.segmentId) != segment) {
+            return;
+        }
+        boolean pending;
+        try {
+            pending = redisDeliveryQueue.isPending(conversationId, segment.segmentId);
+        } catch (Exception e) {
+            log.warn("检查分段状态失败，稍后重试 - 会话ID: {}", conversationId, e);
+            pending = true;
+        }
+        if (pending) {
+            scheduleCheck(conversationId, segment, PENDING_RECHECK_MS);
+        } else {
+            complete(conversationId, segment.segmentId);
+        }
+    }
 
-            JSONObject payload = new JSONObject();
-            payload.set("type", "TEXT");
-            payload.set("conversationId", conversationId);
-            payload.set("messageId", aiMessage.getId());
-            payload.set("senderType", "ai");
-            payload.set("content", segment);
-            payload.set("createdAt", now.toString());
-            chatWebSocketHandler.sendMessageToUser(userId, JSONUtil.toJsonStr(payload));
-            
-            log.debug("分段 [{}/{}] 已发送", segmentIndex, totalSegments);
+    /**
+     * 完成并移除本地登记
+     */
+    private void complete(Long conversationId, String segmentId) {
+        LocalSegment[] removed = new LocalSegment[1];
+        localSegments.computeIfPresent(conversationId, (id, segments) -> {
+            removed[0] = segments.remove(segmentId);
+            return segments.isEmpty() ? null : segments;
         });
+        if (removed[0] != null) {
+            finish(removed[0]);
+        }
+    }
+
+    private void finish(LocalSegment segment) {
+        pendingSegments.decrementAndGet();
+        if (segment.fallback != null) {
+            segment.fallback.cancel();
+        }
+        segment.future.complete(null);
     }
 
-    private CompletableFuture<Void> delay(long ms) {
-        CompletableFuture<Void> future = new CompletableFuture<>();
-        scheduler.schedule(() -> future.complete(null), ms, TimeUnit.MILLISECONDS);
-        return future;
+    /**
+     * 在指定延迟后立即认领一次，不等下一次轮询
+     */
+    private void wakeUpAfter(long delayMs) {
+        timingWheel.schedule(this::requestPoll, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void requestPoll() {
+        if (pollRequested.compareAndSet(false, true)) {
+            poller.execute(this::poll);
+        }
+    }
+
+    /**
+     * 认领到期分段并交给I/O线程发送
+     */
+    private void poll() {
+        pollRequested.set(false);
+        AiProperties.Delivery config = aiProperties.getDelivery();
+        try {
+            for (int round = 0; round < MAX_CLAIM_ROUNDS; round++) {
+                List<RedisDeliveryQueue.ClaimedSegment> claimed = redisDeliveryQueue.claim(config.getClaimBatch(), config.getLeaseMs());
+                for (RedisDeliveryQueue.ClaimedSegment segment : claimed) {
+                    ioExecutor.execute(() -> deliver(segment));
+                }
+                if (claimed.size() < config.getClaimBatch()) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("认领待发送分段失败", e);
+        }
+    }
+
+    /**
+     * 在I/O线程上落库并推送分段，确认后为下一段设置唤醒
+     */
+    private void deliver(RedisDeliveryQueue.ClaimedSegment claimed) {
+        Long conversationId = claimed.getConversationId();
+        deliveryLag.record(Math.max(0, claimed.getClaimedAt() - claimed.getDueAt()), TimeUnit.MILLISECONDS);
+        JSONObject payload = JSONUtil.parseObj(claimed.getPayload());
+        String segmentId = claimed.getSegmentId();
+        try {
+            Map<String, LocalSegment> local = localSegments.get(conversationId);
+            LocalSegment segment = local == null ? null : local.get(segmentId);
+            if (segment != null && segment.ticket.isCancelled()) {
+                log.debug("回复已取消，丢弃分段 [{}/{}] - 会话ID: {}", payload.getInt("index"), payload.getInt("total"), conversationId);
+            } else {
+                sendAiSegment(conversationId, segmentId, payload);
+            }
+        } catch (Exception e) {
+            log.error("分段发送失败 - 会话ID: {}", conversationId, e);
+        } finally {
+            try {
+                long nextDelayMs = redisDeliveryQueue.ack(conversationId, segmentId);
+                if (nextDelayMs >= 0) {
+                    wakeUpAfter(nextDelayMs);
+                }
+            } catch (Exception e) {
+                log.error("确认分段失败，租约到期后将重新发送 - 会话ID: {}", conversationId, e);
+            }
+            complete(conversationId, segmentId);
+        }
+    }
+
+    private void sendAiSegment(Long conversationId, String segmentId, JSONObject segment) {
+        Long userId = segment.getLong("userId");
+        String content = segment.getStr("content");
+
+        Message aiMessage = new Message();
+        aiMessage.setConversationId(conversationId);
+        aiMessage.setSenderType(Message.SenderType.AI);
+        aiMessage.setContent(content);
+        aiMessage.setCreatedAt(LocalDateTime.now());
+        aiMessage.setDeliveryId(segmentId);
+        // 等待落库完成（拿到消息ID）再推送，并且只有确认后才会发送下一段，保证顺序
+        try {
+            messageWriteBuffer.write(aiMessage);
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof DuplicateKeyException)) {
+                throw e;
+            }
+            // 重复投递：上次已落库但未确认，复用已写入的消息重新推送（客户端按消息ID去重）
+            Message delivered = messageMapper.selectByDeliveryId(segmentId);
+            if (delivered == null) {
+                throw e;
+            }
+            log.info("分段重复投递，复用已写入的消息 - 会话ID: {}, 消息ID: {}", conversationId, delivered.getId());
+            aiMessage = delivered;
+        }
+        LocalDateTime now = aiMessage.getCreatedAt();
+        try {
+            conversationIndex.touch(userId, aiMessage);
+        } catch (Exception e) {
+            log.warn("更新会话索引失败 - 会话ID: {}", conversationId, e);
+        }
+
+        JSONObject payload = new JSONObject();
+        payload.set("type", "TEXT");
+        payload.set("conversationId", conversationId);
+        payload.set("messageId", aiMessage.getId());
+        payload.set("senderType", "ai");
+        payload.set("content", content);
+        payload.set("createdAt", now.toString());
+        webSocketRouter.sendToUser(userId, JSONUtil.toJsonStr(payload));
+
+        log.debug("分段 [{}/{}] 已发送", segment.getInt("index"), segment.getInt("total"));
     }
 
     private long computeDelayMs(String text) {
@@ -110,5 +396,20 @@ public class HumanLikeScheduler {
         long delay = BASE_DELAY_MS + (long) length * FACTOR_MS;
         return Math.min(delay, MAX_DELAY_MS);
     }
-}
 
+    /**
+     * 本节点提交的分段
+     */
+    private static final class LocalSegment {
+
+        private final String segmentId;
+        private final ReplyTicket ticket;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private volatile HashedTimingWheel.Timeout fallback;
+
+        private LocalSegment(String segmentId, ReplyTicket ticket) {
+            this.segmentId = segmentId;
+            this.ticket = ticket;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.chatbot.service.core;
+
+import com.chatbot.common.properties.AiProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LLM调用调度器
+ * 以自适应的并发上限执行生成任务，取代固定大小的线程池
+ *
+ * <p>并发上限按 AIMD 调整：单次生成耗时在阈值内且上限已被用满一半以上时，每完成一次增加 1/limit
+ * （约每轮增加1）；耗时超过阈值说明服务端已经排队，按 backoffRatio 收缩。
+ * 超出上限的任务进入有界等待队列，队列已满时直接拒绝，避免服务端变慢时任务无限堆积。</p>
+ *
+ * <p>等待队列按用户分队，以差额轮转（Deficit Round Robin）出队：每轮为用户补充等于其权重的额度，
+ * 每出队一个任务消耗1。单个用户刷屏只会让自己的队列变长，其他用户的等待时间不受影响。</p>
+ *
+ * <p>会话摘要等后台任务通过 {@link #submitBackground} 提交，共用一个权重较低（可小于1）的队列，
+ * 同样受并发上限约束，但在用户的生成任务排队时让出大部分出队机会。</p>
+ *
+ * <p>排队中的任务被取消时立即从队列中移除，不再占用等待队列与该用户的排队名额。</p>
+ * @author Administrator
+ */
+@Slf4j
+@Component
+public class LlmDispatcher {
+
+    /**
+     * 后台任务队列在用户队列表中的键（用户ID均为正数）
+     */
+    private static final Long BACKGROUND_QUEUE_ID = -1L;
+
+    @Resource
+    private AiProperties aiProperties;
+
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * 工作线程，实际并发数由 limit 控制，不超过 maxLimit
+     */
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+
+    /**
+     * 以下状态均由 this 保护
+     * userQueues 中只保存有排队任务的用户，activeUsers 为其轮转顺序
+     */
+    private final Map<Long, UserQueue> userQueues = new HashMap<>();
+    private final Deque<UserQueue> activeUsers = new ArrayDeque<>();
+    private int queued;
+    private double limit;
+    private int inFlight;
+
+    private Timer waitTimer;
+    private Timer latencyTimer;
+    private Counter rejectedQueueFull;
+    private Counter rejectedUserQuota;
+
+    public LlmDispatcher(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        this.limit = aiProperties.getDispatch().getInitialLimit();
+        this.waitTimer = meterRegistry.timer("chatbot.ai.dispatch.wait");
+        this.latencyTimer = meterRegistry.timer("chatbot.ai.dispatch.latency");
+        this.rejectedQueueFull = meterRegistry.counter("chatbot.ai.dispatch.rejected", "reason", "queue_full");
+        this.rejectedUserQuota = meterRegistry.counter("chatbot.ai.dispatch.rejected", "reason", "user_quota");
+        Gauge.builder("chatbot.ai.dispatch.limit", this, LlmDispatcher::currentLimit).register(meterRegistry);
+        Gauge.builder("chatbot.ai.dispatch.inflight", this, LlmDispatcher::inFlight).register(meterRegistry);
+        Gauge.builder("chatbot.ai.dispatch.queue", this, LlmDispatcher::queueDepth).register(meterRegistry);
+        Gauge.builder("chatbot.ai.dispatch.active.users", this, LlmDispatcher::activeUserCount).register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * 提交生成任务
+     * @param userId 任务所属用户，用于公平调度
+     * @param task 生成任务
+     * @return 任务句柄，可用于取消（排队中的任务直接出队，执行中的任务被中断）
+     * @throws RejectedExecutionException 等待队列已满，或该用户排队的任务已达上限
+     */
+    public Future<?> submit(Long userId, Runnable task) {
+        AiProperties.Dispatch config = aiProperties.getDispatch();
+        Job job = new Job(task);
+        synchronized (this) {
+            if (queued >= config.getQueueCapacity()) {
+                rejectedQueueFull.increment();
+                throw new RejectedExecutionException("LLM等待队列已满: " + queued);
+            }
+            UserQueue userQueue = userQueues.get(userId);
+            if (userQueue == null) {
+                userQueue = new UserQueue(userId);
+                userQueues.put(userId, userQueue);
+                activeUsers.addLast(userQueue);
+            } else if (userQueue.jobs.size() >= config.getUserQueueCapacity()) {
+                rejectedUserQuota.increment();
+                throw new RejectedExecutionException("用户排队任务已达上限 - 用户ID: " + userId);
+            }
+            job.userQueue = userQueue;
+            userQueue.jobs.addLast(job);
+            queued++;
+        }
+        drain();
+        return job;
+    }
+
+    /**
+     * 提交后台任务（如会话摘要折叠），以 backgroundWeight 参与公平调度
+     * @throws RejectedExecutionException 等待队列已满，或后台队列的任务已达上限
+     */
+    public Future<?> submitBackground(Runnable task) {
+        return submit(BACKGROUND_QUEUE_ID, task);
+    }
+
+    /**
+     * 把被取消的任务移出等待队列；已出队的任务不受影响
+     */
+    private synchronized void dequeue(Job job) {
+        UserQueue userQueue = job.userQueue;
+        if (userQueue == null || !userQueue.jobs.remove(job)) {
+            return;
+        }
+        job.userQueue = null;
+        queued--;
+        if (userQueue.jobs.isEmpty()) {
+            activeUsers.remove(userQueue);
+            userQueues.remove(userQueue.userId);
+        }
+    }
+
+    /**
+     * 在并发上限内把等待队列中的任务交给工作线程
+     */
+    private void drain() {
+        while (true) {
+            Job job;
+            synchronized (this) {
+                if (inFlight >= (int) limit) {
+                    return;
+                }
+                job = pollFair();
+                if (job == null) {
+                    return;
+                }
+                inFlight++;
+            }
+            waitTimer.record(System.nanoTime() - job.enqueuedAt, TimeUnit.NANOSECONDS);
+            try {
+                workers.execute(() -> runJob(job));
+            } catch (RejectedExecutionException e) {
+                // 仅在关闭时发生
+                synchronized (this) {
+                    inFlight--;
+                }
+                job.cancel(false);
+                return;
+            }
+        }
+    }
+
+    private void runJob(Job job) {
+        long start = System.nanoTime();
+        try {
+            job.run();
+        } finally {
+            long elapsedNanos = System.nanoTime() - start;
+            latencyTimer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+            synchronized (this) {
+                // 被取消的任务耗时不代表服务端状况，不参与调整
+                if (!job.isCancelled()) {
+                    adjustLimit(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+                }
+                inFlight--;
+            }
+            drain();
+        }
+    }
+
+    /**
+     * 按差额轮转取出下一个未取消的任务（须持有 this 锁）
+     */
+    private Job pollFair() {
+        while (!activeUsers.isEmpty()) {
+            UserQueue userQueue = activeUsers.peekFirst();
+            if (userQueue.deficit < 1) {
+                // 轮到该用户，补充一轮额度
+                userQueue.deficit += weightOf(userQueue.userId);
+                if (userQueue.deficit < 1) {
+                    // 权重小于1的队列额度攒够1才出队，本轮让给下一个
+                    activeUsers.addLast(activeUsers.pollFirst());
+                    continue;
+                }
+            }
+            Job job = userQueue.jobs.pollFirst();
+            job.userQueue = null;
+            queued--;
+            // 取消与移出队列之间的短暂窗口内仍可能取到已取消的任务
+            boolean cancelled = job.isCancelled();
+            if (!cancelled) {
+                userQueue.deficit -= 1;
+            }
+            if (userQueue.jobs.isEmpty()) {
+                // 队列清空即退出轮转，额度不累积到下次
+                activeUsers.pollFirst();
+                userQueues.remove(userQueue.userId);
+            } else if (userQueue.deficit < 1) {
+                activeUsers.addLast(activeUsers.pollFirst());
+            }
+            if (!cancelled) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private double weightOf(Long userId) {
+        AiProperties.Dispatch config = aiProperties.getDispatch();
+        if (BACKGROUND_QUEUE_ID.equals(userId)) {
+            return Math.max(0.01, config.getBackgroundWeight());
+        }
+        Integer weight = userId == null ? null : config.getUserWeights().get(userId);
+        return Math.max(1, weight != null ? weight : config.getDefaultWeight());
+    }
+
+    /**
+     * AIMD 调整并发上限（须持有 this 锁）
+     */
+    private void adjustLimit(long latencyMs) {
+        AiProperties.Dispatch config = aiProperties.getDispatch();
+        double previous = limit;
+        if (latencyMs > config.getLatencyThresholdMs()) {
+            limit = Math.max(config.getMinLimit(), limit * config.getBackoffRatio());
+        } else if (inFlight * 2 >= limit) {
+            // 上限没被用到时不增长，避免空闲期把上限抬得过高
+            limit = Math.min(config.getMaxLimit(), limit + 1.0 / limit);
+        }
+        if ((int) previous != (int) limit) {
+            log.info("LLM并发上限调整: {} -> {}, 本次耗时: {}ms", (int) previous, (int) limit, latencyMs);
+        }
+    }
+
+    private synchronized double currentLimit() {
+        return limit;
+    }
+
+    private synchronized double inFlight() {
+        return inFlight;
+    }
+
+    private synchronized double queueDepth() {
+        return queued;
+    }
+
+    private synchronized double activeUserCount() {
+        return activeUsers.size();
+    }
+
+    private static final class UserQueue {
+
+        private final Long userId;
+        private final Deque<Job> jobs = new ArrayDeque<>();
+        private double deficit;
+
+        private UserQueue(Long userId) {
+            this.userId = userId;
+        }
+    }
+
+    private final class Job extends FutureTask<Void> {
+
+        private final long enqueuedAt = System.nanoTime();
+
+        /**
+         * 所在的用户队列，出队后为 null（由 LlmDispatcher.this 保护）
+         */
+        private UserQueue userQueue;
+
+        private Job(Runnable task) {
+            super(task, null);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                dequeue(this);
+            }
+            return cancelled;
+        }
+    }
+}
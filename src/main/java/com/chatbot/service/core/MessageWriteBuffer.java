@@ -0,0 +1,210 @@
+package com.chatbot.service.core;
+
+import com.chatbot.common.properties.MessageProperties;
+import com.chatbot.mapper.MessageMapper;
+import com.chatbot.model.entity.Message;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消息批量写入器（write-behind）
+ * 把短时间内提交的消息合并为一条多行 INSERT，写入后把会话的最后一条消息交给 {@link ConversationActivityTracker} 合并写回，
+ * 并追加到 {@link RecentMessageCache}
+ *
+ * <p>单线程按提交顺序写入，同一会话的消息ID与提交顺序一致；提交方通过返回的Future拿到回填了ID的消息。
+ * 调用方需要顺序保证时（如分段发送）应等待Future完成后再提交下一条。关闭后不再接受提交，
+ * 关闭时仍未写入的消息以失败结束，提交方不会永久等待。</p>
+ * @author Administrator
+ */
+@Slf4j
+@Component
+public class MessageWriteBuffer {
+
+    @Resource
+    private MessageMapper messageMapper;
+    @Resource
+    private ConversationActivityTracker conversationActivityTracker;
+    @Resource
+    private RecentMessageCache recentMessageCache;
+    @Resource
+    private MessageProperties messageProperties;
+
+    private final MeterRegistry meterRegistry;
+
+    private BlockingQueue<WriteRequest> queue;
+    private Thread flusher;
+    private volatile boolean running = true;
+    private DistributionSummary batchSize;
+
+    public MessageWriteBuffer(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        this.queue = new LinkedBlockingQueue<>(messageProperties.getWriteBehind().getQueueCapacity());
+        this.batchSize = meterRegistry.summary("chatbot.message.write.batch");
+        this.flusher = new Thread(this::run, "message-write-buffer");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        flusher.interrupt();
+        flusher.join(TimeUnit.SECONDS.toMillis(5));
+        // 写入线程未能在时限内写完，或与最后一次取出并发入队的消息
+        rejectRemaining();
+    }
+
+    /**
+     * 提交一条待写入的消息，并在写入后更新会话的最后消息时间
+     * @param message 消息（写入成功后回填ID）；调用方须已校验会话归属
+     * @return 写入完成后返回同一个消息对象的Future
+     */
+    public CompletableFuture<Message> submit(Message message) {
+        WriteRequest request = new WriteRequest(message);
+        if (!running) {
+            request.future.completeExceptionally(new IllegalStateException("消息写入器已关闭"));
+            return request.future;
+        }
+        try {
+            queue.put(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.future.completeExceptionally(e);
+            return request.future;
+        }
+        if (!running && !flusher.isAlive()) {
+            // 入队时恰好关闭，写入线程已退出
+            rejectRemaining();
+        }
+        return request.future;
+    }
+
+    /**
+     * 提交一条消息并等待写入完成，最多等待 write-timeout-ms
+     * @return 回填了ID的消息
+     * @throws CompletionException 写入失败或超时（超时的消息之后仍可能写入）
+     */
+    public Message write(Message message) {
+        return submit(message)
+                .orTimeout(messageProperties.getWriteBehind().getWriteTimeoutMs(), TimeUnit.MILLISECONDS)
+                .join();
+    }
+
+    private void rejectRemaining() {
+        List<WriteRequest> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        for (WriteRequest request : remaining) {
+            request.future.completeExceptionally(new IllegalStateException("消息写入器已关闭"));
+        }
+    }
+
+    private void run() {
+        MessageProperties.WriteBehind config = messageProperties.getWriteBehind();
+        List<WriteRequest> batch = new ArrayList<>(config.getMaxBatch());
+        while (running || !queue.isEmpty()) {
+            try {
+                WriteRequest first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // 收到第一条后再等待一个攒批窗口
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getFlushIntervalMs());
+                while (batch.size() < config.getMaxBatch()) {
+                    long remaining = deadline - System.nanoTime();
+                    WriteRequest next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // 关闭时把已取出的和队列中剩余的消息写完
+                queue.drainTo(batch);
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<WriteRequest> batch) {
+        batchSize.record(batch.size());
+        List<Message> messages = new ArrayList<>(batch.size());
+        for (WriteRequest request : batch) {
+            messages.add(request.message);
+        }
+        try {
+            messageMapper.insertBatch(messages);
+        } catch (Exception e) {
+            log.error("批量写入消息失败，逐条重试 - 条数: {}", batch.size(), e);
+            insertOneByOne(batch);
+            return;
+        }
+        touchConversations(batch);
+        for (WriteRequest request : batch) {
+            request.future.complete(request.message);
+        }
+    }
+
+    /**
+     * 批量写入失败时逐条写入，只让出错的那条失败（例如会话已被删除导致外键约束失败）
+     */
+    private void insertOneByOne(List<WriteRequest> batch) {
+        List<WriteRequest> succeeded = new ArrayList<>(batch.size());
+        for (WriteRequest request : batch) {
+            try {
+                request.message.setId(null);
+                messageMapper.insert(request.message);
+                succeeded.add(request);
+            } catch (Exception e) {
+                request.future.completeExceptionally(e);
+            }
+        }
+        touchConversations(succeeded);
+        for (WriteRequest request : succeeded) {
+            request.future.complete(request.message);
+        }
+    }
+
+    /**
+     * 写入成功后更新会话最后一条消息，并把最近消息缓存的追加交给 {@link RecentMessageCache} 的追加线程，
+     * 不在写入线程上等待Redis；在完成Future之前调用，提交方返回后即可读到
+     */
+    private void touchConversations(List<WriteRequest> written) {
+        List<Message> messages = new ArrayList<>(written.size());
+        for (WriteRequest request : written) {
+            conversationActivityTracker.touch(request.message);
+            messages.add(request.message);
+        }
+        recentMessageCache.appendAsync(messages);
+    }
+
+    private static final class WriteRequest {
+
+        private final Message message;
+        private final CompletableFuture<Message> future = new CompletableFuture<>();
+
+        private WriteRequest(Message message) {
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.chatbot.service.core;
+
+import jakarta.websocket.Session;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.NativeWebSocketSession;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 带有界发送队列的WebSocket连接
+ * 调用方只把消息放入队列立即返回，由共享的写线程池按顺序写出，同一连接同一时刻最多一个线程在写
+ *
+ * <p>限制策略与 {@code ConcurrentWebSocketSessionDecorator} 的 TERMINATE 一致：单次发送超过时间上限或积压超过缓冲上限时，
+ * 判定客户端过慢，丢弃积压并关闭连接，由客户端重连。与该装饰器不同的是，实际写入从不在调用方线程上执行，
+ * 慢客户端不会拖住分段发送等调用方线程。</p>
+ *
+ * <p>底层连接是Tomcat实现时，单次阻塞写入的超时也设为发送时间上限，卡住的写入到时抛出异常并断开，
+ * 不会长期占住共享的写线程；关闭连接在单独的线程池中执行，不与正常的写出争用写线程。</p>
+ *
+ * <p>使用二进制子协议的连接，写线程每次把队列中已积压的消息（不超过 batchMaxChars）合并为一个CBOR帧写出，
+ * 同一时刻到达的多条推送（如连续的分段、输入状态）只占一次网络写入；文本连接仍逐条写出，保持原有协议不变。</p>
+ * @author Administrator
+ */
+@Slf4j
+final class OutboundSession {
+
+    /**
+     * Tomcat的阻塞发送超时（毫秒），从原生连接的 userProperties 读取，未设置时默认20秒
+     */
+    private static final String BLOCKING_SEND_TIMEOUT = "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
+
+    private final WebSocketSession session;
+    private final Executor writer;
+    private final Executor closer;
+    private final long sendTimeLimitMs;
+    private final int bufferSizeLimit;
+    /**
+     * 二进制子协议的编解码，文本连接为 null
+     */
+    private final WebSocketFrameCodec codec;
+    private final int batchMaxChars;
+
+    private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger bufferSize = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * 当前这次发送的开始时间，空闲时为0
+     */
+    private volatile long sendStartTime;
+
+    OutboundSession(WebSocketSession session, Executor writer, Executor closer, long sendTimeLimitMs,
+                    int bufferSizeLimit, WebSocketFrameCodec codec, int batchMaxChars) {
+        this.session = session;
+        this.writer = writer;
+        this.closer = closer;
+        this.sendTimeLimitMs = sendTimeLimitMs;
+        this.bufferSizeLimit = bufferSizeLimit;
+        this.codec = codec;
+        this.batchMaxChars = batchMaxChars;
+        if (session instanceof NativeWebSocketSession nativeSession) {
+            Session jakartaSession = nativeSession.getNativeSession(Session.class);
+            if (jakartaSession != null) {
+                jakartaSession.getUserProperties().put(BLOCKING_SEND_TIMEOUT, sendTimeLimitMs);
+            }
+        }
+    }
+
+    /**
+     * 放入发送队列，不阻塞
+     * @return 连接已关闭或因过慢被断开时返回 false
+     */
+    boolean send(String message) {
+        if (closed.get() || !session.isOpen()) {
+            return false;
+        }
+        queue.add(message);
+        int size = bufferSize.addAndGet(message.length());
+        long start = sendStartTime;
+        if (start > 0 && System.currentTimeMillis() - start > sendTimeLimitMs) {
+            terminate("发送超时");
+            return false;
+        }
+        if (size > bufferSizeLimit) {
+            terminate("发送缓冲已满");
+            return false;
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::drain);
+            } catch (Exception e) {
+                draining.set(false);
+                terminate("写线程池不可用");
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            if (codec != null) {
+                drainBatches();
+            } else {
+                String message;
+                while (!closed.get() && (message = queue.poll()) != null) {
+                    bufferSize.addAndGet(-message.length());
+                    sendStartTime = System.currentTimeMillis();
+                    session.sendMessage(new TextMessage(message));
+                    sendStartTime = 0;
+                }
+            }
+        } catch (Exception e) {
+            log.warn("WebSocket发送失败 - Session ID: {}", session.getId(), e);
+            terminate("发送失败");
+        } finally {
+            sendStartTime = 0;
+            draining.set(false);
+        }
+        // 释放标记后可能有新消息入队但没有抢到标记，再检查一次
+        if (!closed.get() && !queue.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    private void drainBatches() throws IOException {
+        List<String> batch = new ArrayList<>();
+        while (!closed.get()) {
+            int chars = 0;
+            String message;
+            // 至少取一条，单条超过上限时单独成帧
+            while ((batch.isEmpty() || chars < batchMaxChars) && (message = queue.poll()) != null) {
+                batch.add(message);
+                chars += message.length();
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            bufferSize.addAndGet(-chars);
+            sendStartTime = System.currentTimeMillis();
+            session.sendMessage(new BinaryMessage(codec.encode(batch)));
+            sendStartTime = 0;
+            batch.clear();
+        }
+    }
+
+    private void terminate(String reason) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        queue.clear();
+        bufferSize.set(0);
+        log.warn("断开WebSocket连接 - Session ID: {}, 原因: {}", session.getId(), reason);
+        // 关闭也要写出关闭帧，可能阻塞在网络上，交给单独的线程池
+        try {
+            closer.execute(this::closeQuietly);
+        } catch (Exception e) {
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            session.close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (Exception e) {
+            log.debug("关闭WebSocket连接失败 - Session ID: {}", session.getId(), e);
+        }
+    }
+}
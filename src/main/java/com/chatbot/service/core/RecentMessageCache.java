@@ -0,0 +1,291 @@
+package com.chatbot.service.core;
+
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.chatbot.common.properties.AiProperties;
+import com.chatbot.common.properties.MessageProperties;
+import com.chatbot.mapper.MessageMapper;
+import com.chatbot.model.entity.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 会话最近消息缓存
+ * 每个会话在Redis中保存最近 N 条消息（N 为 chatbot.ai.context.max-history-messages），生成回复时直接读取，未命中时回源MySQL
+ *
+ * <p>数据结构（同一会话的key带相同的hash tag）：</p>
+ * <ul>
+ *     <li>chatbot:message:recent:{会话ID} —— LIST，按消息ID升序的消息JSON，超出 N 条时从头部裁剪</li>
+ *     <li>chatbot:message:recent:{会话ID}:version —— 缓存不存在期间写入的消息计数</li>
+ * </ul>
+ *
+ * <p>列表只在已存在时追加，因此它总是完整历史的一个后缀。回源时先读version，加载数据库后只有version未变才回填，
+ * 避免加载期间写入的消息被漏掉；追加时发现消息ID倒序（多节点并发写入同一会话）则删除缓存，下次重新加载。</p>
+ *
+ * <p>追加由单独的线程按提交顺序执行，不占用消息写入线程；本节点还有未完成的追加时，该会话的读取直接查数据库，
+ * 保证刚写入的消息对生成回复可见。</p>
+ * @author Administrator
+ */
+@Slf4j
+@Component
+public class RecentMessageCache {
+
+    private static final String KEY_PREFIX = "chatbot:message:recent:";
+
+    /**
+     * 追加消息
+     * KEYS: list, version；ARGV: 容量, 过期秒数, 消息ID, 消息JSON, ...
+     * 返回 1 已追加；0 缓存不存在；-1 消息ID倒序，缓存已删除
+     */
+    private static final DefaultRedisScript<Long> APPEND_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('EXISTS', KEYS[1]) == 0 then "
+            + "  redis.call('INCR', KEYS[2]) "
+            + "  redis.call('EXPIRE', KEYS[2], ARGV[2]) "
+            + "  return 0 "
+            + "end "
+            + "local last = redis.call('LINDEX', KEYS[1], -1) "
+            + "local lastId = 0 "
+            + "if last then lastId = tonumber(cjson.decode(last).id) end "
+            + "for i = 3, #ARGV, 2 do "
+            + "  local id = tonumber(ARGV[i]) "
+            + "  if id > lastId then "
+            + "    redis.call('RPUSH', KEYS[1], ARGV[i + 1]) "
+            + "    lastId = id "
+            + "  elseif id < lastId then "
+            + "    redis.call('DEL', KEYS[1]) "
+            + "    return -1 "
+            + "  end "
+            + "end "
+            + "redis.call('LTRIM', KEYS[1], -tonumber(ARGV[1]), -1) "
+            + "redis.call('EXPIRE', KEYS[1], ARGV[2]) "
+            + "return 1", Long.class);
+
+    /**
+     * 回填缓存：缓存仍不存在且加载期间没有新消息写入时才写入
+     * KEYS: list, version；ARGV: 过期秒数, 加载前读到的version, 消息JSON, ...
+     */
+    private static final DefaultRedisScript<Long> SEED_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('EXISTS', KEYS[1]) == 1 then return 0 end "
+            + "local v = redis.call('GET', KEYS[2]) "
+            + "if (v or '') ~= ARGV[2] then return 0 end "
+            + "for i = 3, #ARGV do redis.call('RPUSH', KEYS[1], ARGV[i]) end "
+            + "redis.call('EXPIRE', KEYS[1], ARGV[1]) "
+            + "return 1", Long.class);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private MessageMapper messageMapper;
+    @Resource
+    private AiProperties aiProperties;
+    @Resource
+    private MessageProperties messageProperties;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter bypasses;
+
+    /**
+     * 追加线程；单线程保证同一会话的追加顺序与写入顺序一致
+     */
+    private final ExecutorService appender = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "recent-message-appender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 会话ID -> 本节点已提交但尚未执行完的追加数
+     */
+    private final Map<Long, AtomicInteger> pendingAppends = new ConcurrentHashMap<>();
+
+    public RecentMessageCache(MeterRegistry meterRegistry) {
+        this.hits = meterRegistry.counter("chatbot.message.recent.cache", "result", "hit");
+        this.misses = meterRegistry.counter("chatbot.message.recent.cache", "result", "miss");
+        this.bypasses = meterRegistry.counter("chatbot.message.recent.cache", "result", "bypass");
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        appender.shutdown();
+        appender.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 查询会话最近的消息（按时间正序，最多 max-history-messages 条）
+     */
+    public List<Message> recent(Long conversationId) {
+        int capacity = aiProperties.getContext().getMaxHistoryMessages();
+        if (!messageProperties.getRecentCache().isEnabled()) {
+            return messageMapper.selectRecentByConversationId(conversationId, capacity);
+        }
+        if (pendingAppends.containsKey(conversationId)) {
+            // 缓存中可能还缺刚写入的消息
+            bypasses.increment();
+            return messageMapper.selectRecentByConversationId(conversationId, capacity);
+        }
+        try {
+            List<String> cached = stringRedisTemplate.opsForList().range(listKey(conversationId), -capacity, -1);
+            if (CollUtil.isNotEmpty(cached)) {
+                hits.increment();
+                List<Message> messages = new ArrayList<>(cached.size());
+                for (String json : cached) {
+                    messages.add(fromJson(json));
+                }
+                return messages;
+            }
+            misses.increment();
+            String version = stringRedisTemplate.opsForValue().get(versionKey(conversationId));
+            List<Message> messages = messageMapper.selectRecentByConversationId(conversationId, capacity);
+            seed(conversationId, version, messages);
+            return messages;
+        } catch (DataAccessException e) {
+            log.warn("读取最近消息缓存失败，回退到数据库 - 会话ID: {}", conversationId, e);
+            return messageMapper.selectRecentByConversationId(conversationId, capacity);
+        }
+    }
+
+    /**
+     * 异步追加已落库的消息；须在消息对调用方可见之前调用，追加完成前本节点对这些会话的读取直接查数据库
+     * @param messages 已回填ID的消息，同一会话内按ID升序
+     */
+    public void appendAsync(List<Message> messages) {
+        if (!messageProperties.getRecentCache().isEnabled() || CollUtil.isEmpty(messages)) {
+            return;
+        }
+        Map<Long, List<Message>> byConversation = groupByConversation(messages);
+        byConversation.keySet().forEach(id -> pendingAppends.computeIfAbsent(id, k -> new AtomicInteger()).incrementAndGet());
+        try {
+            appender.execute(() -> {
+                try {
+                    byConversation.forEach(this::append);
+                } finally {
+                    byConversation.keySet().forEach(this::releasePending);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 关闭中：直接删除缓存，下次读取重新加载
+            byConversation.keySet().forEach(id -> {
+                evict(id);
+                releasePending(id);
+            });
+        }
+    }
+
+    private void append(Long conversationId, List<Message> messages) {
+        List<String> args = new ArrayList<>(messages.size() * 2 + 2);
+        args.add(String.valueOf(aiProperties.getContext().getMaxHistoryMessages()));
+        args.add(String.valueOf(messageProperties.getRecentCache().getTtlSeconds()));
+        for (Message message : messages) {
+            args.add(String.valueOf(message.getId()));
+            args.add(toJson(message));
+        }
+        try {
+            stringRedisTemplate.execute(APPEND_SCRIPT, keys(conversationId), args.toArray());
+        } catch (DataAccessException e) {
+            log.warn("追加最近消息缓存失败 - 会话ID: {}", conversationId, e);
+            evict(conversationId);
+        }
+    }
+
+    private void releasePending(Long conversationId) {
+        pendingAppends.computeIfPresent(conversationId, (id, count) -> count.decrementAndGet() == 0 ? null : count);
+    }
+
+    private static Map<Long, List<Message>> groupByConversation(List<Message> messages) {
+        Map<Long, List<Message>> byConversation = new LinkedHashMap<>();
+        for (Message message : messages) {
+            byConversation.computeIfAbsent(message.getConversationId(), id -> new ArrayList<>()).add(message);
+        }
+        return byConversation;
+    }
+
+    /**
+     * 删除会话的缓存（会话删除时调用）
+     */
+    public void evict(Long conversationId) {
+        try {
+            stringRedisTemplate.delete(listKey(conversationId));
+        } catch (DataAccessException e) {
+            log.warn("删除最近消息缓存失败 - 会话ID: {}", conversationId, e);
+        }
+    }
+
+    private void seed(Long conversationId, String version, List<Message> messages) {
+        if (CollUtil.isEmpty(messages)) {
+            return;
+        }
+        List<String> args = new ArrayList<>(messages.size() + 2);
+        args.add(String.valueOf(messageProperties.getRecentCache().getTtlSeconds()));
+        args.add(version == null ? "" : version);
+        for (Message message : messages) {
+            args.add(toJson(message));
+        }
+        stringRedisTemplate.execute(SEED_SCRIPT, keys(conversationId), args.toArray());
+    }
+
+    private static String toJson(Message message) {
+        JSONObject json = new JSONObject();
+        json.set("id", message.getId());
+        json.set("conversationId", message.getConversationId());
+        json.set("senderType", message.getSenderType() == null ? null : message.getSenderType().getCode());
+        json.set("content", message.getContent());
+        json.set("createdAt", message.getCreatedAt() == null ? null
+                : message.getCreatedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        return json.toString();
+    }
+
+    private static Message fromJson(String value) {
+        JSONObject json = JSONUtil.parseObj(value);
+        Message message = new Message();
+        message.setId(json.getLong("id"));
+        message.setConversationId(json.getLong("conversationId"));
+        String senderType = json.getStr("senderType");
+        for (Message.SenderType type : Message.SenderType.values()) {
+            if (type.getCode().equals(senderType)) {
+                message.setSenderType(type);
+            }
+        }
+        message.setContent(json.getStr("content"));
+        Long createdAt = json.getLong("createdAt");
+        if (createdAt != null) {
+            message.setCreatedAt(LocalDateTime.ofInstant(Instant.ofEpochMilli(createdAt), ZoneId.systemDefault()));
+        }
+        return message;
+    }
+
+    private static List<String> keys(Long conversationId) {
+        return Arrays.asList(listKey(conversationId), versionKey(conversationId));
+    }
+
+    private static String listKey(Long conversationId) {
+        return KEY_PREFIX + "{" + conversationId + "}";
+    }
+
+    private static String versionKey(Long conversationId) {
+        return listKey(conversationId) + ":version";
+    }
+}
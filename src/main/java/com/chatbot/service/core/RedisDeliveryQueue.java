@@ -0,0 +1,282 @@
+package com.chatbot.service.core;
+
+import cn.hutool.json.JSONUtil;
+import jakarta.annotation.Resource;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于Redis的回复分段延迟发送队列
+ * 分段持久化在Redis中，服务重启或多节点部署时不会丢失，任意节点都可以认领到期分段并发送
+ *
+ * <p>会话按ID取模分到 {@value #SHARDS} 个分片，每个分片的key带各自的hash tag {chatbot:delivery:分片号}，
+ * 集群模式下分散到不同slot；同一会话的key总在同一分片内，脚本访问的key全部通过KEYS传入。每个分片的数据结构：</p>
+ * <ul>
+ *     <li>{chatbot:delivery:N}:schedule —— ZSET，member为分段ID，score为到期时间（毫秒）；每个会话只有队首分段在其中</li>
+ *     <li>{chatbot:delivery:N}:segments —— HASH，分段ID -> 分段JSON（含 conversationId 与 delayMs）</li>
+ *     <li>{chatbot:delivery:N}:conversation:{会话ID} —— LIST，会话待发送的分段ID，按顺序排列</li>
+ *     <li>{chatbot:delivery:N}:tail:{会话ID} —— 会话最后一个分段的预计发送时间（毫秒）</li>
+ * </ul>
+ *
+ * <p>每个会话只有队首分段参与计时，因此同一会话的分段严格按顺序发送。
+ * 认领时把score推后一个租约时长，租约内其他节点不会重复认领；节点宕机未确认的分段在租约到期后被重新认领
+ * （至少一次投递，发送方按分段ID去重）。确认后才弹出队首并按下一段的打字延迟设置其score。时间统一取Redis服务器时间。
+ * 认领时轮流从各分片取到期分段，起始分片每次后移一位，避免靠前的分片总是优先。</p>
+ * @author Administrator
+ */
+@Component
+public class RedisDeliveryQueue {
+
+    /**
+     * 分片数；修改后已入队的分段会落在旧分片中无法认领，需在队列排空后调整
+     */
+    static final int SHARDS = 16;
+
+    private static final String KEY_PREFIX = "{chatbot:delivery:";
+
+    private static final String NOW_MS = "local t = redis.call('TIME') local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000) ";
+
+    /**
+     * 追加分段；会话原本没有待发送分段时第一段按其延迟开始计时
+     * KEYS: schedule, segments, conversation, tail；ARGV: (分段ID, 延迟, 分段JSON)...
+     * 返回 [第一段的延迟（会话已有待发送分段时为 -1）, 本次最后一段距预计发送的毫秒数]
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static final DefaultRedisScript<List> ENQUEUE_SCRIPT = new DefaultRedisScript<>(NOW_MS
+            + "local empty = redis.call('LLEN', KEYS[3]) == 0 "
+            + "local tail = tonumber(redis.call('GET', KEYS[4]) or '0') "
+            + "if empty or tail < now then tail = now end "
+            + "local headDelay = -1 "
+            + "if not empty then "
+            + "  local head = redis.call('LINDEX', KEYS[3], 0) "
+            + "  if not redis.call('ZSCORE', KEYS[1], head) then redis.call('ZADD', KEYS[1], now, head) end "
+            + "end "
+            + "for i = 1, #ARGV, 3 do "
+            + "  local delay = tonumber(ARGV[i + 1]) "
+            + "  redis.call('HSET', KEYS[2], ARGV[i], ARGV[i + 2]) "
+            + "  redis.call('RPUSH', KEYS[3], ARGV[i]) "
+            + "  tail = tail + delay "
+            + "  if empty and i == 1 then "
+            + "    redis.call('ZADD', KEYS[1], now + delay, ARGV[i]) "
+            + "    headDelay = delay "
+            + "  end "
+            + "end "
+            + "redis.call('SET', KEYS[4], string.format('%d', tail)) "
+            + "return {headDelay, tail - now}", List.class);
+
+    /**
+     * 认领到期的分段，并把它们的score推后一个租约
+     * KEYS: schedule, segments；ARGV: 批量大小, 租约毫秒
+     * 返回 [认领时间, 分段ID, 到期时间, 分段JSON, ...]
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT = new DefaultRedisScript<>(NOW_MS
+            + "local due = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', now, 'WITHSCORES', 'LIMIT', 0, tonumber(ARGV[1])) "
+            + "local result = {string.format('%d', now)} "
+            + "for i = 1, #due, 2 do "
+            + "  local payload = redis.call('HGET', KEYS[2], due[i]) "
+            + "  if payload then "
+            + "    redis.call('ZADD', KEYS[1], now + tonumber(ARGV[2]), due[i]) "
+            + "    table.insert(result, due[i]) "
+            + "    table.insert(result, tostring(due[i + 1])) "
+            + "    table.insert(result, payload) "
+            + "  else "
+            + "    redis.call('ZREM', KEYS[1], due[i]) "
+            + "  end "
+            + "end "
+            + "return result", List.class);
+
+    /**
+     * 确认队首分段已发送：弹出队首，下一段按其延迟开始计时；队列为空时清理会话的key
+     * KEYS: schedule, segments, conversation, tail；ARGV: 已发送的分段ID
+     * 返回下一段的延迟；队列已空返回 -1；队首已不是该分段（已被取消或其他节点确认）返回 -2
+     */
+    private static final DefaultRedisScript<Long> ACK_SCRIPT = new DefaultRedisScript<>(NOW_MS
+            + "if redis.call('LINDEX', KEYS[3], 0) ~= ARGV[1] then return -2 end "
+            + "redis.call('LPOP', KEYS[3]) "
+            + "redis.call('HDEL', KEYS[2], ARGV[1]) "
+            + "redis.call('ZREM', KEYS[1], ARGV[1]) "
+            + "local next = redis.call('LINDEX', KEYS[3], 0) "
+            + "if not next then redis.call('DEL', KEYS[4]) return -1 end "
+            + "local payload = redis.call('HGET', KEYS[2], next) "
+            + "local delay = 0 "
+            + "if payload then delay = tonumber(cjson.decode(payload)['delayMs']) or 0 end "
+            + "redis.call('ZADD', KEYS[1], now + delay, next) "
+            + "return delay", Long.class);
+
+    /**
+     * 丢弃会话所有待发送分段
+     * KEYS: schedule, segments, conversation, tail
+     */
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT = new DefaultRedisScript<>(
+            "local ids = redis.call('LRANGE', KEYS[3], 0, -1) "
+            + "for i = 1, #ids do "
+            + "  redis.call('ZREM', KEYS[1], ids[i]) "
+            + "  redis.call('HDEL', KEYS[2], ids[i]) "
+            + "end "
+            + "redis.call('DEL', KEYS[3], KEYS[4]) "
+            + "return #ids", Long.class);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 下一次认领的起始分片
+     */
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    /**
+     * 追加会话的待发送分段
+     * @param segmentIds 分段ID
+     * @param delays 各分段的打字延迟（毫秒）
+     * @param payloads 分段JSON，须包含 conversationId 与 delayMs 字段
+     */
+    @SuppressWarnings("unchecked")
+    public EnqueueResult enqueue(Long conversationId, List<String> segmentIds, List<Long> delays, List<String> payloads) {
+        List<String> args = new ArrayList<>(segmentIds.size() * 3);
+        for (int i = 0; i < segmentIds.size(); i++) {
+            args.add(segmentIds.get(i));
+            args.add(String.valueOf(delays.get(i)));
+            args.add(payloads.get(i));
+        }
+        List<Object> result = stringRedisTemplate.execute(ENQUEUE_SCRIPT, keys(conversationId), args.toArray());
+        if (result == null || result.size() < 2) {
+            throw new IllegalStateException("分段入队脚本返回结果异常: " + result);
+        }
+        return new EnqueueResult(toLong(result.get(0)), toLong(result.get(1)));
+    }
+
+    /**
+     * 依次从各分片认领一批到期分段
+     * @param batchSize 最多认领的分段数（每个会话至多一个）
+     * @param leaseMs 租约时长，超时未确认的分段会被重新认领
+     */
+    public List<ClaimedSegment> claim(int batchSize, long leaseMs) {
+        int start = Math.floorMod(nextShard.getAndIncrement(), SHARDS);
+        List<ClaimedSegment> claimed = new ArrayList<>();
+        for (int i = 0; i < SHARDS && claimed.size() < batchSize; i++) {
+            claimShard((start + i) % SHARDS, batchSize - claimed.size(), leaseMs, claimed);
+        }
+        return claimed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void claimShard(int shard, int batchSize, long leaseMs, List<ClaimedSegment> claimed) {
+        String prefix = shardPrefix(shard);
+        List<Object> raw = stringRedisTemplate.execute(CLAIM_SCRIPT, Arrays.asList(prefix + "schedule", prefix + "segments"),
+                String.valueOf(batchSize), String.valueOf(leaseMs));
+        if (raw == null || raw.size() < 4) {
+            return;
+        }
+        long claimedAt = toLong(raw.get(0));
+        for (int i = 1; i + 2 < raw.size(); i += 3) {
+            String payload = String.valueOf(raw.get(i + 2));
+            claimed.add(new ClaimedSegment(
+                    String.valueOf(raw.get(i)),
+                    JSONUtil.parseObj(payload).getLong("conversationId"),
+                    (long) Double.parseDouble(String.valueOf(raw.get(i + 1))),
+                    claimedAt,
+                    payload));
+        }
+    }
+
+    /**
+     * 确认分段已发送
+     * @return 下一段的延迟；会话已无待发送分段或分段已不在队首时返回负数
+     */
+    public long ack(Long conversationId, String segmentId) {
+        Long result = stringRedisTemplate.execute(ACK_SCRIPT, keys(conversationId), segmentId);
+        return result == null ? -1 : result;
+    }
+
+    /**
+     * 分段是否仍在队列中（尚未确认也未被取消）
+     */
+    public boolean isPending(Long conversationId, String segmentId) {
+        return stringRedisTemplate.opsForHash().hasKey(shardPrefix(shardOf(conversationId)) + "segments", segmentId);
+    }
+
+    /**
+     * 丢弃会话所有待发送分段
+     */
+    public void cancel(Long conversationId) {
+        stringRedisTemplate.execute(CANCEL_SCRIPT, keys(conversationId));
+    }
+
+    private static List<String> keys(Long conversationId) {
+        String prefix = shardPrefix(shardOf(conversationId));
+        return Arrays.asList(prefix + "schedule", prefix + "segments",
+                prefix + "conversation:" + conversationId, prefix + "tail:" + conversationId);
+    }
+
+    static int shardOf(Long conversationId) {
+        return (int) Math.floorMod(conversationId, (long) SHARDS);
+    }
+
+    private static String shardPrefix(int shard) {
+        return KEY_PREFIX + shard + "}:";
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number number ? number.longValue() : Long.parseLong(String.valueOf(value));
+    }
+
+    /**
+     * 入队结果
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class EnqueueResult {
+
+        /**
+         * 会话因本次入队开始计时时为第一段的延迟，否则为 -1
+         */
+        private final long headDelayMs;
+
+        /**
+         * 本次最后一段距预计发送时间的毫秒数（排在会话已有的待发送分段之后）
+         */
+        private final long lastDueInMs;
+    }
+
+    /**
+     * 认领到的分段
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class ClaimedSegment {
+
+        /**
+         * 分段ID
+         */
+        private final String segmentId;
+
+        /**
+         * 会话ID
+         */
+        private final Long conversationId;
+
+        /**
+         * 到期时间（毫秒，Redis服务器时间）
+         */
+        private final long dueAt;
+
+        /**
+         * 认领时间（毫秒，Redis服务器时间），与 dueAt 之差即为发送滞后
+         */
+        private final long claimedAt;
+
+        /**
+         * 分段JSON
+         */
+        private final String payload;
+    }
+}
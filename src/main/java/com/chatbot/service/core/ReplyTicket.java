@@ -0,0 +1,26 @@
+package com.chatbot.service.core;
+
+/**
+ * 一次AI回复生成的取消凭证
+ * 由 {@link AiReplyCoordinator} 为每轮生成签发，生成过程与分段发送在关键节点检查该凭证，
+ * 被取消后不再调用模型、也不再发送尚未发出的分段
+ * @author Administrator
+ */
+public class ReplyTicket {
+
+    private volatile boolean cancelled;
+
+    /**
+     * 取消本轮回复
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * 本轮回复是否已被取消
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
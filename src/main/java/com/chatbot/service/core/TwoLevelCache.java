@@ -0,0 +1,265 @@
+package com.chatbot.service.core;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 按主键读取的两级缓存：本地Caffeine（一级）+ Redis（二级），均未命中时回源加载
+ *
+ * <p>两级都保存实体的JSON，每次读取反序列化出新对象，调用方可以随意修改返回值。
+ * 不缓存不存在的记录。Redis不可用时直接回源。</p>
+ *
+ * <p>每个实体在Redis中另有一个version，删除缓存时递增。回源前先读version，加载完只有version未变才写入Redis，
+ * 避免回源期间提交的修改被加载到的旧数据覆盖（与 {@link RecentMessageCache} 的回填方式相同）。</p>
+ * @author Administrator
+ */
+@Slf4j
+public class TwoLevelCache<V> {
+
+    /**
+     * 回填：缓存不存在且回源期间没有删除过才写入
+     * KEYS: value, version；ARGV: 过期秒数, 回源前读到的version, JSON
+     */
+    private static final DefaultRedisScript<Long> FILL_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('EXISTS', KEYS[1]) == 1 then return 0 end "
+            + "local v = redis.call('GET', KEYS[2]) "
+            + "if (v or '') ~= ARGV[2] then return 0 end "
+            + "redis.call('SET', KEYS[1], ARGV[3], 'EX', ARGV[1]) "
+            + "return 1", Long.class);
+
+    /**
+     * 删除缓存并递增version
+     * KEYS: value, version；ARGV: version过期秒数
+     */
+    private static final DefaultRedisScript<Long> EVICT_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('DEL', KEYS[1]) "
+            + "redis.call('INCR', KEYS[2]) "
+            + "redis.call('EXPIRE', KEYS[2], ARGV[1]) "
+            + "return 1", Long.class);
+
+    private final String name;
+    private final Class<V> type;
+    private final Function<Long, V> loader;
+    /**
+     * 批量回源，可为 null（此时逐个回源）；返回的Map中不包含不存在的ID
+     */
+    private final Function<List<Long>, Map<Long, V>> batchLoader;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ObjectMapper objectMapper;
+    private final long redisTtlSeconds;
+    private final Cache<Long, String> local;
+    private final Counter redisHits;
+    private final Counter redisMisses;
+
+    public TwoLevelCache(String name, Class<V> type, Function<Long, V> loader, Function<List<Long>, Map<Long, V>> batchLoader,
+                         StringRedisTemplate stringRedisTemplate, ObjectMapper objectMapper, long localMaximumSize,
+                         long localTtlSeconds, long redisTtlSeconds, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.type = type;
+        this.loader = loader;
+        this.batchLoader = batchLoader;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.objectMapper = objectMapper;
+        this.redisTtlSeconds = redisTtlSeconds;
+        this.local = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(localTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        // 一级缓存命中率：cache.gets{cache=name,result=hit|miss}
+        CaffeineCacheMetrics.monitor(meterRegistry, local, name);
+        this.redisHits = meterRegistry.counter("chatbot.cache.redis", "cache", name, "result", "hit");
+        this.redisMisses = meterRegistry.counter("chatbot.cache.redis", "cache", name, "result", "miss");
+    }
+
+    /**
+     * 读取实体，依次查本地缓存、Redis、回源
+     * @return 实体；不存在时返回 null
+     */
+    public V get(Long id) {
+        if (id == null) {
+            return null;
+        }
+        String json = local.getIfPresent(id);
+        if (json == null) {
+            json = loadShared(id);
+            if (json == null) {
+                return null;
+            }
+            local.put(id, json);
+        }
+        return fromJson(json);
+    }
+
+    /**
+     * 批量读取实体：本地缓存未命中的一次 MGET 读取Redis（连同version），仍未命中的一次批量回源并回填两级缓存
+     * @return ID -> 实体，不存在的ID不在结果中
+     */
+    public Map<Long, V> getAll(List<Long> ids) {
+        Map<Long, V> result = new HashMap<>(ids.size() * 2);
+        List<Long> missed = new ArrayList<>();
+        for (Long id : ids) {
+            String json = local.getIfPresent(id);
+            if (json == null) {
+                missed.add(id);
+            } else {
+                result.put(id, fromJson(json));
+            }
+        }
+        if (missed.isEmpty()) {
+            return result;
+        }
+        // 每个ID依次是 value、version 两个key
+        List<String> shared = null;
+        try {
+            List<String> keys = new ArrayList<>(missed.size() * 2);
+            for (Long id : missed) {
+                keys.addAll(keys(id));
+            }
+            shared = stringRedisTemplate.opsForValue().multiGet(keys);
+        } catch (DataAccessException e) {
+            log.warn("批量读取Redis缓存失败，回源加载 - 缓存: {}, 条数: {}", name, missed.size(), e);
+        }
+        List<Long> toLoad = new ArrayList<>();
+        Map<Long, String> versions = new HashMap<>(missed.size() * 2);
+        for (int i = 0; i < missed.size(); i++) {
+            Long id = missed.get(i);
+            String json = shared == null ? null : shared.get(i * 2);
+            if (json != null) {
+                redisHits.increment();
+                local.put(id, json);
+                result.put(id, fromJson(json));
+                continue;
+            }
+            redisMisses.increment();
+            toLoad.add(id);
+            if (shared != null) {
+                String version = shared.get(i * 2 + 1);
+                versions.put(id, version == null ? "" : version);
+            }
+        }
+        if (toLoad.isEmpty()) {
+            return result;
+        }
+        Map<Long, V> loaded = batchLoader != null ? batchLoader.apply(toLoad) : loadEach(toLoad);
+        loaded.forEach((id, value) -> {
+            String json = toJson(value);
+            local.put(id, json);
+            result.put(id, fromJson(json));
+            // Redis读取失败时不回填
+            String version = versions.get(id);
+            if (version != null) {
+                fill(id, version, json);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 删除本节点与Redis中的缓存
+     */
+    public void evict(Long id) {
+        local.invalidate(id);
+        try {
+            stringRedisTemplate.execute(EVICT_SCRIPT, keys(id), String.valueOf(redisTtlSeconds));
+        } catch (DataAccessException e) {
+            log.warn("删除Redis缓存失败 - 缓存: {}, ID: {}", name, id, e);
+        }
+    }
+
+    /**
+     * 只删除本节点的缓存（收到其他节点的失效通知时调用）
+     */
+    public void evictLocal(Long id) {
+        local.invalidate(id);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private String loadShared(Long id) {
+        String version;
+        try {
+            List<String> cached = stringRedisTemplate.opsForValue().multiGet(keys(id));
+            String json = cached == null ? null : cached.get(0);
+            if (json != null) {
+                redisHits.increment();
+                return json;
+            }
+            redisMisses.increment();
+            version = cached == null ? null : cached.get(1);
+        } catch (DataAccessException e) {
+            log.warn("读取Redis缓存失败，回源加载 - 缓存: {}, ID: {}", name, id, e);
+            return toJson(loader.apply(id));
+        }
+        String json = toJson(loader.apply(id));
+        if (json != null) {
+            fill(id, version == null ? "" : version, json);
+        }
+        return json;
+    }
+
+    private Map<Long, V> loadEach(List<Long> ids) {
+        Map<Long, V> loaded = new HashMap<>(ids.size() * 2);
+        for (Long id : ids) {
+            V value = loader.apply(id);
+            if (value != null) {
+                loaded.put(id, value);
+            }
+        }
+        return loaded;
+    }
+
+    private void fill(Long id, String version, String json) {
+        try {
+            stringRedisTemplate.execute(FILL_SCRIPT, keys(id), String.valueOf(redisTtlSeconds), version, json);
+        } catch (DataAccessException e) {
+            log.warn("写入Redis缓存失败 - 缓存: {}, ID: {}", name, id, e);
+        }
+    }
+
+    private String toJson(V value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("缓存序列化失败: " + name, e);
+        }
+    }
+
+    private V fromJson(String json) {
+        try {
+            return objectMapper.readValue(json, type);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("缓存反序列化失败: " + name, e);
+        }
+    }
+
+    private List<String> keys(Long id) {
+        return Arrays.asList(redisKey(id), redisKey(id) + ":version");
+    }
+
+    private String redisKey(Long id) {
+        return "chatbot:cache:" + name + ":{" + id + "}";
+    }
+}
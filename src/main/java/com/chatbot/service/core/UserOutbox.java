@@ -0,0 +1,133 @@
+package com.chatbot.service.core;
+
+import com.chatbot.common.properties.WebSocketProperties;
+import jakarta.annotation.Resource;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 用户推送日志
+ * 每条推送在发送前写入用户的推送日志并分配单调递增的序号，客户端断线重连后带上最后收到的序号即可补发错过的推送，
+ * 不必再通过接口重新拉取整页历史
+ *
+ * <p>数据结构（同一用户的key带相同的hash tag）：</p>
+ * <ul>
+ *     <li>chatbot:ws:outbox:{用户ID} —— ZSET，score为序号，member为带序号的推送JSON，只保留最近 outbox-capacity 条</li>
+ *     <li>chatbot:ws:outbox:{用户ID}:seq —— 序号计数器，不过期</li>
+ * </ul>
+ *
+ * <p>日志不活跃时会过期，但计数器永久保留：序号从不回退，客户端带着过期前的序号重连时总能判定为缺口，
+ * 不会因为序号重新从1开始而把新推送误认为已收到。</p>
+ * @author Administrator
+ */
+@Component
+public class UserOutbox {
+
+    private static final String KEY_PREFIX = "chatbot:ws:outbox:";
+
+    /**
+     * 分配序号并写入日志，把序号写到推送JSON的第一个字段；只有日志设置过期时间，计数器去掉旧版本设置的过期时间
+     * KEYS: outbox, seq；ARGV: 去掉开头 '{' 的推送JSON, 容量, 过期秒数
+     * 返回带序号的推送JSON
+     */
+    private static final DefaultRedisScript<String> APPEND_SCRIPT = new DefaultRedisScript<>(
+            "local seq = redis.call('INCR', KEYS[2]) "
+            + "local sep = ',' "
+            + "if ARGV[1] == '}' then sep = '' end "
+            + "local payload = '{\"seq\":' .. string.format('%d', seq) .. sep .. ARGV[1] "
+            + "redis.call('ZADD', KEYS[1], seq, payload) "
+            + "local size = redis.call('ZCARD', KEYS[1]) "
+            + "local capacity = tonumber(ARGV[2]) "
+            + "if size > capacity then redis.call('ZREMRANGEBYRANK', KEYS[1], 0, size - capacity - 1) end "
+            + "redis.call('EXPIRE', KEYS[1], ARGV[3]) "
+            + "redis.call('PERSIST', KEYS[2]) "
+            + "return payload", String.class);
+
+    /**
+     * 读取指定序号之后的推送
+     * KEYS: outbox, seq；ARGV: 客户端最后收到的序号
+     * 返回 [当前序号, 日志中最早的序号, 推送JSON, ...]
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static final DefaultRedisScript<List> REPLAY_SCRIPT = new DefaultRedisScript<>(
+            "local current = tonumber(redis.call('GET', KEYS[2]) or '0') "
+            + "local first = redis.call('ZRANGE', KEYS[1], 0, 0, 'WITHSCORES') "
+            + "local oldest = current + 1 "
+            + "if first[2] then oldest = tonumber(first[2]) end "
+            + "local result = {string.format('%d', current), string.format('%d', oldest)} "
+            + "local items = redis.call('ZRANGEBYSCORE', KEYS[1], '(' .. ARGV[1], '+inf') "
+            + "for i = 1, #items do table.insert(result, items[i]) end "
+            + "return result", List.class);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private WebSocketProperties webSocketProperties;
+
+    /**
+     * 写入推送日志
+     * @param userId 用户ID
+     * @param payload 推送JSON对象
+     * @return 带 seq 字段的推送JSON；推送不是JSON对象时原样返回，不写入日志
+     */
+    public String append(Long userId, String payload) {
+        if (payload == null || !payload.startsWith("{")) {
+            return payload;
+        }
+        return stringRedisTemplate.execute(APPEND_SCRIPT, keys(userId), payload.substring(1),
+                String.valueOf(webSocketProperties.getOutboxCapacity()),
+                String.valueOf(webSocketProperties.getOutboxTtlSeconds()));
+    }
+
+    /**
+     * 读取客户端错过的推送
+     * @param lastSeq 客户端最后收到的序号
+     */
+    @SuppressWarnings("unchecked")
+    public Replay replay(Long userId, long lastSeq) {
+        List<String> result = stringRedisTemplate.execute(REPLAY_SCRIPT, keys(userId), String.valueOf(lastSeq));
+        if (result == null || result.size() < 2) {
+            return new Replay(0, false, Collections.emptyList());
+        }
+        long current = Long.parseLong(result.get(0));
+        long oldest = Long.parseLong(result.get(1));
+        // 错过的推送已被裁剪或日志已过期；序号大于当前值说明计数器丢失（如Redis数据被清空）
+        boolean gap = lastSeq < oldest - 1 || lastSeq > current;
+        return new Replay(current, gap, result.subList(2, result.size()));
+    }
+
+    private static List<String> keys(Long userId) {
+        String outbox = KEY_PREFIX + "{" + userId + "}";
+        return Arrays.asList(outbox, outbox + ":seq");
+    }
+
+    /**
+     * 补发结果
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Replay {
+
+        /**
+         * 当前最新序号
+         */
+        private final long currentSeq;
+
+        /**
+         * 是否有无法补发的推送（客户端需要通过接口重新拉取）
+         */
+        private final boolean gap;
+
+        /**
+         * 按序号升序的待补发推送
+         */
+        private final List<String> payloads;
+    }
+}
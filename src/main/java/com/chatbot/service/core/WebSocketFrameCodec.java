@@ -0,0 +1,64 @@
+package com.chatbot.service.core;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import jakarta.annotation.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 二进制WebSocket子协议的编解码
+ *
+ * <p>客户端在握手时通过 Sec-WebSocket-Protocol 请求 {@value #CBOR_PROTOCOL} 即启用，未请求的连接仍使用JSON文本帧。
+ * 推送在集群内部（推送日志、节点间转发）始终是JSON字符串，只在写出到连接时转换：</p>
+ * <ul>
+ *     <li>服务端 -> 客户端：每帧是一个CBOR数组，元素为与文本协议相同结构的消息，按发送顺序排列</li>
+ *     <li>客户端 -> 服务端：每帧是一个CBOR map（单条消息）或由map组成的数组</li>
+ * </ul>
+ * @author Administrator
+ */
+@Component
+public class WebSocketFrameCodec {
+
+    public static final String CBOR_PROTOCOL = "chatbot.cbor";
+
+    private final CBORMapper cborMapper = new CBORMapper();
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    /**
+     * 把多条JSON消息编码为一个CBOR数组帧
+     */
+    public byte[] encode(List<String> messages) throws IOException {
+        ArrayNode batch = cborMapper.createArrayNode();
+        for (String message : messages) {
+            batch.add(objectMapper.readTree(message));
+        }
+        return cborMapper.writeValueAsBytes(batch);
+    }
+
+    /**
+     * 把客户端发来的CBOR帧解码为JSON消息
+     */
+    public List<String> decode(byte[] frame) throws IOException {
+        JsonNode node = cborMapper.readTree(frame);
+        if (node == null || node.isMissingNode()) {
+            return Collections.emptyList();
+        }
+        if (!node.isArray()) {
+            return Collections.singletonList(objectMapper.writeValueAsString(node));
+        }
+        List<String> messages = new ArrayList<>(node.size());
+        for (JsonNode item : node) {
+            messages.add(objectMapper.writeValueAsString(item));
+        }
+        return messages;
+    }
+}
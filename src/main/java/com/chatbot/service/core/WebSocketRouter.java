@@ -0,0 +1,325 @@
+package com.chatbot.service.core;
+
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.chatbot.common.properties.WebSocketProperties;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 集群范围的WebSocket消息路由
+ * 在Redis中登记用户连接所在的节点，推送时本节点的连接直接发送，其他节点上的连接通过该节点的发布订阅频道转发
+ *
+ * <p>同一用户可以同时在多个设备（多个连接，可能分布在不同节点）上在线，每条消息推送到该用户的所有连接。
+ * 每个连接有独立的有界发送队列（{@link OutboundSession}），推送只入队不阻塞，慢客户端不会拖住调用方线程。</p>
+ *
+ * <p>数据结构：</p>
+ * <ul>
+ *     <li>chatbot:ws:user:{用户ID} —— HASH，field为持有该用户连接的节点ID，value为登记时间（毫秒）</li>
+ *     <li>chatbot:ws:node:{节点ID} —— 每个节点订阅的频道，消息为 {"userId":..,"payload":".."}</li>
+ * </ul>
+ *
+ * <p>目录条目带过期时间，本节点定期为仍有连接的用户续期，只要连接还在登记就不会过期；
+ * 节点宕机后不再续期，残留的登记最迟在过期后清除，在此之前向其频道发布时收到的订阅者数为0也会立即清理。</p>
+ * @author Administrator
+ */
+@Slf4j
+@Component
+public class WebSocketRouter {
+
+    private static final String USER_KEY_PREFIX = "chatbot:ws:user:";
+    private static final String NODE_CHANNEL_PREFIX = "chatbot:ws:node:";
+
+    /**
+     * 目录条目的过期时间；建立连接时和定期续期时刷新，防止宕机节点残留的登记永久占用内存
+     */
+    private static final long DIRECTORY_TTL_SECONDS = TimeUnit.MINUTES.toSeconds(10);
+
+    /**
+     * 为本节点在线用户续期的间隔，远小于过期时间，偶尔一次续期失败也不会过期
+     */
+    private static final long DIRECTORY_REFRESH_SECONDS = DIRECTORY_TTL_SECONDS / 4;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private WebSocketProperties webSocketProperties;
+    @Resource
+    private UserOutbox userOutbox;
+    @Resource
+    private WebSocketFrameCodec webSocketFrameCodec;
+
+    /**
+     * 本节点ID，每次启动重新生成
+     */
+    private final String nodeId = IdUtil.fastSimpleUUID();
+
+    /**
+     * 本节点的连接：用户ID -> (会话ID -> 连接)
+     */
+    private final Map<Long, Map<String, OutboundSession>> sessions = new ConcurrentHashMap<>();
+
+    private ExecutorService writer;
+    private ExecutorService closer;
+    private final ScheduledExecutorService directoryRefresher = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.writer = Executors.newFixedThreadPool(webSocketProperties.getWriterThreads(), r -> {
+            Thread thread = new Thread(r, "ws-writer-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger closerIndex = new AtomicInteger();
+        this.closer = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "ws-closer-" + closerIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        MessageListener listener = (message, pattern) -> onForward(new String(message.getBody(), StandardCharsets.UTF_8));
+        redisMessageListenerContainer.addMessageListener(listener, new ChannelTopic(NODE_CHANNEL_PREFIX + nodeId));
+        directoryRefresher.scheduleWithFixedDelay(this::refreshDirectory,
+                DIRECTORY_REFRESH_SECONDS, DIRECTORY_REFRESH_SECONDS, TimeUnit.SECONDS);
+        log.info("WebSocket路由已启动 - 节点ID: {}", nodeId);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        directoryRefresher.shutdown();
+        for (Long userId : sessions.keySet()) {
+            unregisterDirectory(userId);
+        }
+        writer.shutdown();
+        closer.shutdown();
+    }
+
+    /**
+     * 登记本节点上建立的连接（同一用户的多个连接同时有效）
+     */
+    public void register(Long userId, WebSocketSession session) {
+        // 握手时协商了二进制子协议的连接按CBOR批量写出
+        WebSocketFrameCodec codec = WebSocketFrameCodec.CBOR_PROTOCOL.equals(session.getAcceptedProtocol())
+                ? webSocketFrameCodec : null;
+        OutboundSession outbound = new OutboundSession(session, writer, closer,
+                webSocketProperties.getSendTimeLimitMs(), webSocketProperties.getBufferSizeLimit(),
+                codec, webSocketProperties.getBatchMaxChars());
+        // 在compute中加入，避免与注销时移除空集合并发而加到已被移除的集合上
+        sessions.compute(userId, (id, userSessions) -> {
+            Map<String, OutboundSession> result = userSessions == null ? new ConcurrentHashMap<>() : userSessions;
+            result.put(session.getId(), outbound);
+            return result;
+        });
+        registerDirectory(userId);
+    }
+
+    /**
+     * 注销本节点上关闭的连接；用户在本节点已没有连接时从目录中移除本节点
+     */
+    public void unregister(Long userId, WebSocketSession session) {
+        boolean[] empty = new boolean[1];
+        sessions.computeIfPresent(userId, (id, userSessions) -> {
+            userSessions.remove(session.getId());
+            empty[0] = userSessions.isEmpty();
+            return empty[0] ? null : userSessions;
+        });
+        if (empty[0]) {
+            unregisterDirectory(userId);
+            // 注销期间用户在本节点重新连接时，重新登记
+            if (sessions.containsKey(userId)) {
+                registerDirectory(userId);
+            }
+        }
+    }
+
+    /**
+     * 推送消息给用户，无论其连接在哪个节点
+     * @param userId 用户ID
+     * @param message 消息内容（JSON字符串）
+     */
+    public void sendToUser(Long userId, String message) {
+        // 先写入推送日志分配序号，用户离线或连接中途断开时可在重连后补发
+        try {
+            message = userOutbox.append(userId, message);
+        } catch (Exception e) {
+            log.warn("写入推送日志失败，本条推送无法补发 - 用户ID: {}", userId, e);
+        }
+        // 本节点的连接直接入队发送，不经过Redis
+        boolean delivered = sendLocal(userId, message);
+        Map<Object, Object> nodes;
+        try {
+            nodes = stringRedisTemplate.opsForHash().entries(USER_KEY_PREFIX + userId);
+        } catch (Exception e) {
+            log.error("查询WebSocket连接目录失败，只推送本节点的连接 - 用户ID: {}", userId, e);
+            return;
+        }
+        String forward = null;
+        for (Object node : nodes.keySet()) {
+            String targetNode = (String) node;
+            if (nodeId.equals(targetNode)) {
+                continue;
+            }
+            if (forward == null) {
+                forward = new JSONObject().set("userId", userId).set("payload", message).toString();
+            }
+            forward(userId, targetNode, forward);
+        }
+        if (!delivered && forward == null) {
+            log.debug("User {} not connected, message dropped or should be stored offline", userId);
+        }
+    }
+
+    /**
+     * 向重连的客户端补发其最后收到的序号之后的推送；错过的推送已无法补发时通知客户端重新拉取
+     *
+     * <p>补发期间到达的实时推送可能与补发内容重复或先于补发到达，客户端按序号去重。</p>
+     * @param lastSeq 客户端最后收到的序号
+     */
+    public void resume(Long userId, WebSocketSession session, long lastSeq) {
+        UserOutbox.Replay replay;
+        try {
+            replay = userOutbox.replay(userId, lastSeq);
+        } catch (Exception e) {
+            log.error("读取推送日志失败 - 用户ID: {}", userId, e);
+            replay = null;
+        }
+        if (replay == null || replay.isGap() || exceedsBuffer(replay.getPayloads())) {
+            long seq = replay == null ? lastSeq : replay.getCurrentSeq();
+            sendToSession(userId, session, new JSONObject().set("type", "RESYNC").set("seq", seq).toString());
+            return;
+        }
+        for (String payload : replay.getPayloads()) {
+            if (!sendToSession(userId, session, payload)) {
+                return;
+            }
+        }
+        log.debug("补发推送 - 用户ID: {}, 起始序号: {}, 条数: {}", userId, lastSeq, replay.getPayloads().size());
+    }
+
+    /**
+     * 补发内容过多时改为让客户端重新拉取，避免一次补发就撑满发送缓冲而被断开、重连后再次补发
+     */
+    private boolean exceedsBuffer(List<String> payloads) {
+        long size = 0;
+        for (String payload : payloads) {
+            size += payload.length();
+        }
+        return size > webSocketProperties.getBufferSizeLimit() / 2;
+    }
+
+    /**
+     * 回复到指定连接（如心跳响应），与推送共用该连接的发送队列，保证同一连接不会并发写入
+     */
+    public boolean sendToSession(Long userId, WebSocketSession session, String message) {
+        Map<String, OutboundSession> userSessions = sessions.get(userId);
+        OutboundSession outbound = userSessions == null ? null : userSessions.get(session.getId());
+        return outbound != null && outbound.send(message);
+    }
+
+    private void forward(Long userId, String targetNode, String forward) {
+        try {
+            Long receivers = stringRedisTemplate.convertAndSend(NODE_CHANNEL_PREFIX + targetNode, forward);
+            if (receivers != null && receivers == 0) {
+                // 没有订阅者说明该节点已下线，清理残留的登记
+                stringRedisTemplate.opsForHash().delete(USER_KEY_PREFIX + userId, targetNode);
+                log.info("清理已下线节点的WebSocket登记 - 用户ID: {}, 节点ID: {}", userId, targetNode);
+            }
+        } catch (Exception e) {
+            log.error("转发WebSocket消息失败 - 用户ID: {}, 节点ID: {}", userId, targetNode, e);
+        }
+    }
+
+    /**
+     * 收到其他节点转发的消息
+     */
+    private void onForward(String body) {
+        try {
+            JSONObject json = JSONUtil.parseObj(body);
+            Long userId = json.getLong("userId");
+            if (!sendLocal(userId, json.getStr("payload"))) {
+                log.debug("转发的消息到达时用户已断开 - 用户ID: {}", userId);
+            }
+        } catch (Exception e) {
+            log.error("处理转发的WebSocket消息失败: {}", body, e);
+        }
+    }
+
+    /**
+     * 推送到本节点上该用户的所有连接
+     * @return 至少有一个连接接收了消息时返回 true
+     */
+    private boolean sendLocal(Long userId, String message) {
+        Map<String, OutboundSession> userSessions = sessions.get(userId);
+        if (userSessions == null) {
+            return false;
+        }
+        boolean delivered = false;
+        for (OutboundSession outbound : userSessions.values()) {
+            delivered |= outbound.send(message);
+        }
+        return delivered;
+    }
+
+    private void registerDirectory(Long userId) {
+        try {
+            String key = USER_KEY_PREFIX + userId;
+            stringRedisTemplate.opsForHash().put(key, nodeId, String.valueOf(System.currentTimeMillis()));
+            stringRedisTemplate.expire(key, DIRECTORY_TTL_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.error("登记WebSocket连接失败，其他节点将无法向该连接推送 - 用户ID: {}", userId, e);
+        }
+    }
+
+    /**
+     * 为本节点上仍有连接的用户续期目录条目（一次pipeline）
+     */
+    private void refreshDirectory() {
+        if (sessions.isEmpty()) {
+            return;
+        }
+        try {
+            byte[] node = nodeId.getBytes(StandardCharsets.UTF_8);
+            byte[] now = String.valueOf(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long userId : sessions.keySet()) {
+                    byte[] key = (USER_KEY_PREFIX + userId).getBytes(StandardCharsets.UTF_8);
+                    connection.hashCommands().hSet(key, node, now);
+                    connection.keyCommands().expire(key, DIRECTORY_TTL_SECONDS);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("续期WebSocket连接目录失败，将在下次续期时重试 - 节点ID: {}", nodeId, e);
+        }
+    }
+
+    private void unregisterDirectory(Long userId) {
+        try {
+            stringRedisTemplate.opsForHash().delete(USER_KEY_PREFIX + userId, nodeId);
+        } catch (Exception e) {
+            log.warn("注销WebSocket连接失败，登记将在过期后清理 - 用户ID: {}", userId, e);
+        }
+    }
+}
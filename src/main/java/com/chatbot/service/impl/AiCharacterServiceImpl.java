@@ -12,6 +12,11 @@ import com.chatbot.model.dto.UpdateAiCharacterDTO;
 import com.chatbot.model.entity.AiCharacter;
 import com.chatbot.model.vo.AiCharacterVO;
 import com.chatbot.service.AiCharacterService;
+import com.chatbot.service.core.AiContextBuilder;
+import com.chatbot.service.core.AiReplyCoordinator;
+import com.chatbot.service.core.ConversationIndex;
+import com.chatbot.service.core.EntityCache;
+import com.chatbot.service.core.RecentMessageCache;
 import com.github.pagehelper.Page;
 import com.github.pagehelper.PageHelper;
 import jakarta.annotation.Resource;
@@ -45,6 +50,16 @@ public class AiCharacterServiceImpl implements AiCharacterService {
     private LongTermMemoryMapper longTermMemoryMapper;
     @Resource
     private AliOssUtil aliOssUtil;
+    @Resource
+    private AiContextBuilder aiContextBuilder;
+    @Resource
+    private AiReplyCoordinator aiReplyCoordinator;
+    @Resource
+    private ConversationIndex conversationIndex;
+    @Resource
+    private RecentMessageCache recentMessageCache;
+    @Resource
+    private EntityCache entityCache;
 
 
     /**
@@ -107,7 +122,7 @@ public class AiCharacterServiceImpl implements AiCharacterService {
         }
 
         // 2. 查询AI角色
-        AiCharacter aiCharacter = aiCharacterMapper.selectById(id);
+        AiCharacter aiCharacter = entityCache.getAiCharacter(id);
         if (aiCharacter == null) {
             throw new BizException("AI角色不存在");
         }
@@ -135,7 +150,7 @@ public class AiCharacterServiceImpl implements AiCharacterService {
     public AiCharacterVO update(UpdateAiCharacterDTO updateAiCharacterDTO) {
         // 1. 验证AI角色是否存在
         Long id = updateAiCharacterDTO.getId();
-        AiCharacter aiCharacter = aiCharacterMapper.selectById(id);
+        AiCharacter aiCharacter = entityCache.getAiCharacter(id);
         if (aiCharacter == null) {
             throw new BizException("AI角色不存在");
         }
@@ -150,6 +165,8 @@ public class AiCharacterServiceImpl implements AiCharacterService {
         if (result <= 0) {
             throw new BizException("更新AI角色失败");
         }
+        aiContextBuilder.evictSystemPrompt(id);
+        entityCache.evictAiCharacter(id);
 
         // 4. 查询更新后的数据
         AiCharacter updatedAiCharacter = aiCharacterMapper.selectById(id);
@@ -183,7 +200,7 @@ public class AiCharacterServiceImpl implements AiCharacterService {
         }
 
         // 2. 验证AI角色是否存在
-        AiCharacter aiCharacter = aiCharacterMapper.selectById(id);
+        AiCharacter aiCharacter = entityCache.getAiCharacter(id);
         if (aiCharacter == null) {
             throw new BizException("AI角色不存在");
         }
@@ -199,7 +216,11 @@ public class AiCharacterServiceImpl implements AiCharacterService {
         // 5. 如果存在对话，批量删除所有对话的消息记录
         if (conversationIds != null && !conversationIds.isEmpty()) {
             for (Long conversationId : conversationIds) {
+                aiReplyCoordinator.cancel(conversationId);
+                conversationIndex.remove(aiCharacter.getUserId(), conversationId);
                 messageMapper.deleteByConversationId(conversationId);
+                recentMessageCache.evict(conversationId);
+                entityCache.evictConversation(conversationId);
             }
         }
 
@@ -214,6 +235,8 @@ public class AiCharacterServiceImpl implements AiCharacterService {
         if (result <= 0) {
             throw new BizException("删除AI角色失败");
         }
+        aiContextBuilder.evictSystemPrompt(id);
+        entityCache.evictAiCharacter(id);
     }
 
     /**
@@ -227,7 +250,7 @@ public class AiCharacterServiceImpl implements AiCharacterService {
     @Override
     public String updateAvatar(Long id, MultipartFile file) {
         // 1. 验证AI角色是否存在
-        AiCharacter aiCharacter = aiCharacterMapper.selectById(id);
+        AiCharacter aiCharacter = entityCache.getAiCharacter(id);
         if (aiCharacter == null) {
             throw new BizException("AI角色不存在");
         }
@@ -266,6 +289,8 @@ public class AiCharacterServiceImpl implements AiCharacterService {
         if (result <= 0) {
             throw new BizException("更新头像失败");
         }
+        aiContextBuilder.evictSystemPrompt(id);
+        entityCache.evictAiCharacter(id);
 
         return avatarUrl;
     }
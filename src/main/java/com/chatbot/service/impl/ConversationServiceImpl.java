@@ -2,14 +2,23 @@ package com.chatbot.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
 import com.chatbot.common.exception.BizException;
+import com.chatbot.common.result.PageResult;
 import com.chatbot.common.util.UserContext;
-import com.chatbot.mapper.AiCharacterMapper;
 import com.chatbot.mapper.ConversationMapper;
 import com.chatbot.model.entity.AiCharacter;
 import com.chatbot.model.entity.Conversation;
 import com.chatbot.model.vo.ConversationVO;
 import com.chatbot.service.ConversationService;
+import com.chatbot.service.core.AiReplyCoordinator;
+import com.chatbot.service.core.ConversationActivityTracker;
+import com.chatbot.service.core.ConversationIndex;
+import com.chatbot.service.core.EntityCache;
+import com.chatbot.service.core.RecentMessageCache;
+import com.github.pagehelper.Page;
+import com.github.pagehelper.PageHelper;
 import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -23,15 +32,27 @@ import java.util.stream.Collectors;
  * <p>统一通过 {@link UserContext#getUserId()} 做用户隔离与权限校验。</p>
  * @author Administrator
  */
+@Slf4j
 @Service
 public class ConversationServiceImpl implements ConversationService {
 
     @Resource
     private ConversationMapper conversationMapper;
     @Resource
-    private AiCharacterMapper aiCharacterMapper;
+    private AiReplyCoordinator aiReplyCoordinator;
     @Resource
-    private com.chatbot.mapper.MessageMapper messageMapper;
+    private ConversationActivityTracker conversationActivityTracker;
+    @Resource
+    private ConversationIndex conversationIndex;
+    @Resource
+    private RecentMessageCache recentMessageCache;
+    @Resource
+    private EntityCache entityCache;
+
+    /**
+     * 会话列表单页最大条数
+     */
+    private static final int MAX_PAGE_SIZE = 100;
 
     /**
      * 创建会话
@@ -41,7 +62,7 @@ public class ConversationServiceImpl implements ConversationService {
     @Override
     public ConversationVO create(Long characterId) {
         Long userId = requireUserId();
-        AiCharacter aiCharacter = aiCharacterMapper.selectById(characterId);
+        AiCharacter aiCharacter = entityCache.getAiCharacter(characterId);
         if (aiCharacter == null) {
             throw new BizException("AI角色不存在");
         }
@@ -64,17 +85,32 @@ public class ConversationServiceImpl implements ConversationService {
         if (saved == null) {
             throw new BizException("创建会话失败");
         }
+        conversationIndex.add(saved);
         return toVO(saved);
     }
 
     /**
-     * 获取当前用户会话列表（置顶优先，其次按最后消息时间倒序）
+     * 分页获取当前用户会话列表（置顶优先，其次按最后消息时间倒序）
      */
     @Override
-    public List<ConversationVO> list() {
+    public PageResult list(int pageNum, int pageSize) {
         Long userId = requireUserId();
-        List<Conversation> conversations = conversationMapper.selectByUserId(userId);
-        return conversations.stream().map(this::toVO).collect(Collectors.toList());
+        int size = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+        long offset = (long) (Math.max(pageNum, 1) - 1) * size;
+        try {
+            // 排序来自Redis索引，会话从缓存读取
+            ConversationIndex.Page page = conversationIndex.page(userId, offset, size);
+            List<ConversationVO> records = page.getConversations().stream()
+                    .map(this::toVO).collect(Collectors.toList());
+            return new PageResult(page.getTotal(), records);
+        } catch (DataAccessException e) {
+            log.warn("会话索引不可用，回退到数据库查询 - 用户ID: {}", userId, e);
+        }
+        // 叠加尚未写回数据库的最后消息，保证排序正确
+        PageHelper.startPage(Math.max(pageNum, 1), size);
+        Page<Conversation> page = (Page<Conversation>) conversationMapper.selectByUserId(userId);
+        List<Conversation> conversations = conversationActivityTracker.overlay(page.getResult());
+        return new PageResult(page.getTotal(), conversations.stream().map(this::toVO).collect(Collectors.toList()));
     }
 
     /**
@@ -89,6 +125,11 @@ public class ConversationServiceImpl implements ConversationService {
         if (result <= 0) {
             throw new BizException("删除会话失败");
         }
+        entityCache.evictConversation(id);
+        conversationIndex.remove(userId, id);
+        recentMessageCache.evict(id);
+        // 停止该会话进行中的AI回复，避免向已删除的会话写入消息
+        aiReplyCoordinator.cancel(id);
     }
 
     /**
@@ -105,10 +146,12 @@ public class ConversationServiceImpl implements ConversationService {
         if (result <= 0) {
             throw new BizException("置顶更新失败");
         }
-        Conversation updated = conversationMapper.selectById(id);
+        entityCache.evictConversation(id);
+        Conversation updated = conversationActivityTracker.overlay(conversationMapper.selectById(id));
         if (updated == null) {
             throw new BizException("置顶更新失败");
         }
+        conversationIndex.updatePinned(updated);
         return toVO(updated);
     }
 
@@ -139,7 +182,7 @@ public class ConversationServiceImpl implements ConversationService {
      */
     private Conversation requireOwnerConversation(Long id) {
         Long userId = requireUserId();
-        Conversation conversation = conversationMapper.selectById(id);
+        Conversation conversation = conversationActivityTracker.overlay(entityCache.getConversation(id));
         if (conversation == null) {
             throw new BizException("会话不存在");
         }
@@ -156,11 +199,10 @@ public class ConversationServiceImpl implements ConversationService {
         ConversationVO conversationVO = new ConversationVO();
         BeanUtil.copyProperties(conversation, conversationVO);
         
-        // 查询最后一条消息
-        com.chatbot.model.entity.Message lastMessage = messageMapper.selectLastByConversationId(conversation.getId());
-        if (lastMessage != null) {
-            conversationVO.setLastMessage(lastMessage.getContent());
-            conversationVO.setLastMessageSenderType(lastMessage.getSenderType().getCode());
+        // 最后一条消息的预览随会话一起查出（由 ConversationActivityTracker 维护），无需逐个查询消息表
+        if (conversation.getLastMessage() != null) {
+            conversationVO.setLastMessageSenderType(conversation.getLastMessageSenderType() == null
+                    ? null : conversation.getLastMessageSenderType().getCode());
         } else {
             conversationVO.setLastMessage("开始聊天吧~");
             conversationVO.setLastMessageSenderType(null);
@@ -4,9 +4,9 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.collection.CollUtil;
 import cn.hutool.core.util.StrUtil;
 import com.chatbot.common.exception.BizException;
-import com.chatbot.common.result.PageResult;
+import com.chatbot.common.properties.AiProperties;
+import com.chatbot.common.result.CursorResult;
 import com.chatbot.common.util.UserContext;
-import com.chatbot.mapper.AiCharacterMapper;
 import com.chatbot.mapper.ConversationMapper;
 import com.chatbot.mapper.MessageMapper;
 import com.chatbot.model.dto.SendMessageDTO;
@@ -16,45 +16,70 @@ import com.chatbot.model.entity.Message;
 import com.chatbot.model.vo.MessageVO;
 import com.chatbot.service.MessageService;
 import com.chatbot.service.core.AiInteractionService;
+import com.chatbot.service.core.AiReplyCoordinator;
+import com.chatbot.service.core.ContextWindowPlanner;
+import com.chatbot.service.core.ConversationIndex;
+import com.chatbot.service.core.ConversationSummarizer;
 import com.chatbot.service.core.HumanLikeScheduler;
-import com.github.pagehelper.Page;
-import com.github.pagehelper.PageHelper;
-import jakarta.annotation.PreDestroy;
+import com.chatbot.service.core.EntityCache;
+import com.chatbot.service.core.MessageWriteBuffer;
+import com.chatbot.service.core.RecentMessageCache;
+import com.chatbot.service.core.ReplyTicket;
 import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
+@Slf4j
 @Service
 public class MessageServiceImpl implements MessageService {
 
+    /**
+     * 单页消息条数上限
+     */
+    private static final int MAX_PAGE_SIZE = 100;
+
     @Resource
     private ConversationMapper conversationMapper;
     @Resource
     private MessageMapper messageMapper;
     @Resource
-    private AiCharacterMapper aiCharacterMapper;
-    @Resource
     private AiInteractionService aiInteractionService;
     @Resource
     private HumanLikeScheduler humanLikeScheduler;
+    @Resource
+    private AiProperties aiProperties;
+    @Resource
+    private ContextWindowPlanner contextWindowPlanner;
+    @Resource
+    private ConversationSummarizer conversationSummarizer;
+    @Resource
+    private AiReplyCoordinator aiReplyCoordinator;
+    @Resource
+    private MessageWriteBuffer messageWriteBuffer;
+    @Resource
+    private ConversationIndex conversationIndex;
+    @Resource
+    private RecentMessageCache recentMessageCache;
+    @Resource
+    private EntityCache entityCache;
 
-    private final ExecutorService aiExecutor = Executors.newFixedThreadPool(4);
-
-    @PreDestroy
-    public void shutdown() {
-        aiExecutor.shutdown();
+    @Override
+    public MessageVO send(SendMessageDTO sendMessageDTO) {
+        return send(requireUserId(), sendMessageDTO);
     }
 
-    @Transactional(rollbackFor = Exception.class)
     @Override
-    public MessageVO send(SendMessageDTO sendMessageDTO) {
-        Long userId = requireUserId();
+    public MessageVO send(Long userId, SendMessageDTO sendMessageDTO) {
         if (sendMessageDTO == null) {
             throw new BizException("请求参数不能为空");
         }
@@ -62,6 +87,9 @@ public class MessageServiceImpl implements MessageService {
         if (conversationId == null) {
             throw new BizException("会话ID不能为空");
         }
+        if (StrUtil.isBlank(sendMessageDTO.getContent())) {
+            throw new BizException("消息内容不能为空");
+        }
 
         Conversation conversation = requireOwnerConversation(conversationId, userId);
 
@@ -71,76 +99,179 @@ public class MessageServiceImpl implements MessageService {
         userMessage.setSenderType(Message.SenderType.USER);
         userMessage.setContent(sendMessageDTO.getContent());
         userMessage.setCreatedAt(now);
+        userMessage.setClientMsgId(StrUtil.emptyToNull(sendMessageDTO.getClientMsgId()));
 
-        int inserted = messageMapper.insert(userMessage);
-        if (inserted <= 0 || userMessage.getId() == null) {
-            throw new BizException("发送消息失败");
+        // 与其他消息合并为批量写入，同时更新会话的最后消息时间
+        try {
+            messageWriteBuffer.write(userMessage);
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof DuplicateKeyException) || userMessage.getClientMsgId() == null) {
+                log.error("发送消息失败 - 会话ID: {}", conversationId, e.getCause());
+                throw new BizException("发送消息失败");
+            }
+            // 客户端重发：上次已写入（可能在等待超时之后），返回已写入的消息，并照常触发回复
+            userMessage = messageMapper.selectByClientMsgId(conversationId, userMessage.getClientMsgId());
+            if (userMessage == null) {
+                throw new BizException("发送消息失败");
+            }
         }
-
-        int touched = conversationMapper.updateLastMessageTime(conversationId, userId, now);
-        if (touched <= 0) {
+        if (userMessage.getId() == null) {
             throw new BizException("发送消息失败");
         }
+        // 会话列表索引写穿；失败不影响发送，索引过期后会从数据库重建
+        try {
+            conversationIndex.touch(userId, userMessage);
+        } catch (Exception e) {
+            log.warn("更新会话索引失败 - 会话ID: {}", conversationId, e);
+        }
 
-        String userContent = userMessage.getContent();
+        // 连续发送的多条消息经防抖后合并为一次生成；生成中到达的新消息会取消本轮并重新生成
         Long characterId = conversation.getCharacterId();
-        aiExecutor.submit(() -> generateAndScheduleAiReply(userId, conversationId, characterId, userContent));
+        aiReplyCoordinator.requestReply(conversationId, userId, ticket -> generateAndScheduleAiReply(userId, conversationId, characterId, ticket));
 
         return toVO(userMessage);
     }
 
     @Override
-    public PageResult list(Long conversationId, int pageNum, int pageSize) {
+    public CursorResult list(Long conversationId, Long before, Long after, int limit) {
         Long userId = requireUserId();
         if (conversationId == null) {
             throw new BizException("会话ID不能为空");
         }
         requireOwnerConversation(conversationId, userId);
+        int size = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
 
-        PageHelper.startPage(pageNum, pageSize);
-        Page<Message> page = messageMapper.pageByConversationId(conversationId);
-        List<MessageVO> records = new ArrayList<>();
-        if (CollUtil.isNotEmpty(page.getResult())) {
-            for (Message message : page.getResult()) {
-                records.add(toVO(message));
-            }
+        // 多查一条用于判断是否还有更多
+        List<Message> messages;
+        if (before != null || after == null) {
+            Message cursor = before == null ? null : requireCursor(before, conversationId);
+            messages = messageMapper.selectBeforeCursor(conversationId,
+                    cursor == null ? null : cursor.getCreatedAt(),
+                    cursor == null ? null : cursor.getId(),
+                    size + 1);
+        } else {
+            Message cursor = requireCursor(after, conversationId);
+            messages = messageMapper.selectAfterCursor(conversationId, cursor.getCreatedAt(), cursor.getId(), size + 1);
+        }
+        boolean hasMore = messages.size() > size;
+        if (hasMore) {
+            messages = messages.subList(0, size);
+        }
+
+        List<MessageVO> records = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            records.add(toVO(message));
         }
-        return new PageResult(page.getTotal(), records);
+        if (before != null || after == null) {
+            // 向前翻页按倒序查出，返回前恢复为时间正序
+            Collections.reverse(records);
+        }
+        return new CursorResult(records, hasMore);
     }
 
-    private void generateAndScheduleAiReply(Long userId, Long conversationId, Long characterId, String userContent) {
+    private Message requireCursor(Long messageId, Long conversationId) {
+        Message cursor = messageMapper.selectById(messageId);
+        if (cursor == null || !conversationId.equals(cursor.getConversationId())) {
+            throw new BizException("消息游标无效");
+        }
+        return cursor;
+    }
+
+    /**
+     * 为会话中尚未回复的用户消息生成AI回复并加入发送队列
+     * @param ticket 本轮回复的取消凭证
+     * @return 回复全部发送完毕后完成的Future
+     */
+    private CompletableFuture<Void> generateAndScheduleAiReply(Long userId, Long conversationId, Long characterId, ReplyTicket ticket) {
         try {
-            org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(this.getClass());
-            
-            AiCharacter aiCharacter = aiCharacterMapper.selectById(characterId);
+            AiCharacter aiCharacter = entityCache.getAiCharacter(characterId);
             if (aiCharacter == null) {
                 log.warn("AI角色不存在，角色ID: {}", characterId);
-                return;
+                return CompletableFuture.completedFuture(null);
             }
 
-            List<Message> history = messageMapper.selectRecentByConversationId(conversationId, 20);
-            List<Message> contextHistory = trimLatestUserEcho(history, userContent);
+            // 最近消息优先从缓存读取，未命中时回源数据库
+            List<Message> history = recentMessageCache.recent(conversationId);
+            int pendingStart = pendingUserInputStart(history);
+            if (pendingStart >= history.size()) {
+                log.debug("没有待回复的用户消息 - 会话ID: {}", conversationId);
+                return CompletableFuture.completedFuture(null);
+            }
+            // 最近一条AI消息之后的所有用户消息合并为本轮输入
+            String userContent = history.subList(pendingStart, history.size()).stream()
+                    .map(Message::getContent)
+                    .collect(Collectors.joining("\n"));
+
+            String summary = conversationSummarizer.getSummary(conversationId);
+            List<Message> candidates = history.subList(0, pendingStart);
+            List<Message> contextHistory = contextWindowPlanner.fit(conversationId, aiCharacter, summary, candidates, userContent);
+            Long windowStartId = CollUtil.isNotEmpty(contextHistory) ? contextHistory.get(0).getId() : history.get(pendingStart).getId();
+
+            // 窗口前移后尚未折叠进摘要的消息：放得下就一并带上，放不下（或超出已加载范围）时同步折叠一批，
+            // 本轮使用折叠后的摘要与截断的窗口，剩余的交给后台折叠
+            boolean truncated = history.size() >= aiProperties.getContext().getMaxHistoryMessages();
+            List<Message> unfolded = conversationSummarizer.unfolded(conversationId,
+                    candidates.subList(0, candidates.size() - contextHistory.size()), truncated);
+            boolean behind = unfolded == null || !unfolded.isEmpty();
+            if (unfolded != null && !unfolded.isEmpty()) {
+                List<Message> extended = new ArrayList<>(unfolded.size() + contextHistory.size());
+                extended.addAll(unfolded);
+                extended.addAll(contextHistory);
+                if (contextWindowPlanner.fits(aiCharacter, summary, extended, userContent)) {
+                    contextHistory = extended;
+                } else {
+                    unfolded = null;
+                }
+            }
+            if (unfolded == null) {
+                summary = conversationSummarizer.foldNow(conversationId, windowStartId);
+                contextHistory = contextWindowPlanner.fit(conversationId, aiCharacter, summary, candidates, userContent);
+                windowStartId = CollUtil.isNotEmpty(contextHistory) ? contextHistory.get(0).getId() : history.get(pendingStart).getId();
+            }
+            // 早于上下文窗口的消息交由摘要服务在后台折叠
+            conversationSummarizer.onTurn(conversationId, windowStartId, behind);
 
-            List<String> segments = aiInteractionService.chat(aiCharacter, contextHistory, userContent);
-            humanLikeScheduler.enqueueAiReply(userId, conversationId, segments);
+            if (aiProperties.isStreaming()) {
+                // 流式：每生成完一句就加入发送队列，无需等待整段回复生成完毕
+                AtomicReference<CompletableFuture<Void>> delivered = new AtomicReference<>(CompletableFuture.completedFuture(null));
+                Long segmentCount = aiInteractionService.chatStream(aiCharacter, summary, contextHistory, userContent)
+                        .takeWhile(segment -> !ticket.isCancelled())
+                        .doOnNext(segment -> delivered.set(humanLikeScheduler.enqueueAiReply(userId, conversationId, Collections.singletonList(segment), ticket)))
+                        .count()
+                        .block();
+                log.info("AI流式回复已加入发送队列 - 会话ID: {}, 分段数: {}", conversationId, segmentCount);
+                return delivered.get();
+            }
+
+            List<String> segments = aiInteractionService.chat(aiCharacter, summary, contextHistory, userContent);
+            CompletableFuture<Void> delivered = humanLikeScheduler.enqueueAiReply(userId, conversationId, segments, ticket);
             
             log.info("AI回复已加入发送队列 - 会话ID: {}, 分段数: {}", conversationId, segments.size());
+            return delivered;
         } catch (Exception e) {
-            org.slf4j.LoggerFactory.getLogger(this.getClass()).error("AI回复生成任务执行失败", e);
+            if (ticket.isCancelled()) {
+                // 被新消息或会话删除取消，中断会打断阻塞中的模型调用
+                log.debug("AI回复生成已取消 - 会话ID: {}", conversationId);
+            } else {
+                log.error("AI回复生成任务执行失败", e);
+            }
+            return CompletableFuture.completedFuture(null);
         }
     }
 
-    private List<Message> trimLatestUserEcho(List<Message> history, String userContent) {
-        if (CollUtil.isEmpty(history) || StrUtil.isBlank(userContent)) {
-            return history;
-        }
-        Message last = history.get(history.size() - 1);
-        if (last != null
-                && Message.SenderType.USER.equals(last.getSenderType())
-                && userContent.equals(last.getContent())) {
-            return history.subList(0, history.size() - 1);
+    /**
+     * 末尾连续用户消息（即最近一条AI消息之后的用户消息）的起始下标；末尾是AI消息时返回列表长度
+     */
+    private int pendingUserInputStart(List<Message> history) {
+        int start = history.size();
+        while (start > 0) {
+            Message message = history.get(start - 1);
+            if (message == null || !Message.SenderType.USER.equals(message.getSenderType())) {
+                break;
+            }
+            start--;
         }
-        return history;
+        return start;
     }
 
     private MessageVO toVO(Message message) {
@@ -161,7 +292,7 @@ public class MessageServiceImpl implements MessageService {
     }
 
     private Conversation requireOwnerConversation(Long conversationId, Long userId) {
-        Conversation conversation = conversationMapper.selectById(conversationId);
+        Conversation conversation = entityCache.getConversation(conversationId);
         if (conversation == null) {
             throw new BizException("会话不存在");
         }
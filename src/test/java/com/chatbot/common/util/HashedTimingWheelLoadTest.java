@@ -0,0 +1,100 @@
+package com.chatbot.common.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 时间轮负载测试：10万个同时等待的定时任务（与分段发送的规模相当），其中1万个在到期前取消
+ *
+ * <p>校验：没有任务提前执行，未取消的任务全部执行且只执行一次，取消的任务不执行，最大延迟在若干tick之内。
+ * 使用128个槽位（一圈1.28秒），使3秒以内的延迟覆盖多圈的情况。</p>
+ * @author Administrator
+ */
+@Slf4j
+class HashedTimingWheelLoadTest {
+
+    private static final int TIMERS = 100_000;
+    private static final int CANCELLED = 10_000;
+    private static final long MAX_DELAY_MS = 3_000;
+
+    /**
+     * 待取消任务的最短延迟，保证全部提交完再取消时它们都还未到期
+     */
+    private static final long MIN_CANCELLED_DELAY_MS = 1_500;
+    private static final long TICK_MS = 10;
+
+    /**
+     * 允许的最大延迟；共享CI机器上线程调度有抖动，远宽于tick
+     */
+    private static final long MAX_LAG_MS = 250;
+
+    @Test
+    void handlesOneHundredThousandPendingTimers() throws InterruptedException {
+        HashedTimingWheel wheel = new HashedTimingWheel("wheel-load-test", TICK_MS, TimeUnit.MILLISECONDS, 128);
+        try {
+            AtomicInteger early = new AtomicInteger();
+            AtomicInteger fired = new AtomicInteger();
+            AtomicInteger firedCancelled = new AtomicInteger();
+            AtomicLong maxLagNanos = new AtomicLong();
+            CountDownLatch done = new CountDownLatch(TIMERS - CANCELLED);
+
+            List<HashedTimingWheel.Timeout> toCancel = new ArrayList<>(CANCELLED);
+            long scheduleStart = System.nanoTime();
+            for (int i = 0; i < TIMERS; i++) {
+                boolean cancel = i < CANCELLED;
+                long delayMs = cancel
+                        ? ThreadLocalRandom.current().nextLong(MIN_CANCELLED_DELAY_MS, MAX_DELAY_MS)
+                        : ThreadLocalRandom.current().nextLong(MAX_DELAY_MS);
+                long delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMs);
+                long due = System.nanoTime() + delayNanos;
+                HashedTimingWheel.Timeout timeout = wheel.schedule(() -> {
+                    long lag = System.nanoTime() - due;
+                    if (cancel) {
+                        firedCancelled.incrementAndGet();
+                        return;
+                    }
+                    if (lag < 0) {
+                        early.incrementAndGet();
+                    }
+                    maxLagNanos.accumulateAndGet(lag, Math::max);
+                    fired.incrementAndGet();
+                    done.countDown();
+                }, delayNanos, TimeUnit.NANOSECONDS);
+                if (cancel) {
+                    toCancel.add(timeout);
+                }
+            }
+            long scheduleNanos = System.nanoTime() - scheduleStart;
+            assertTrue(scheduleNanos < TimeUnit.MILLISECONDS.toNanos(MIN_CANCELLED_DELAY_MS), "提交耗时过长");
+            for (HashedTimingWheel.Timeout timeout : toCancel) {
+                timeout.cancel();
+            }
+
+            assertTrue(done.await(MAX_DELAY_MS + 10_000, TimeUnit.MILLISECONDS), "未在预期时间内全部执行");
+            // 再等几个tick，确认取消的任务没有在最后执行
+            TimeUnit.MILLISECONDS.sleep(TICK_MS * 5);
+            long maxLagMs = TimeUnit.NANOSECONDS.toMillis(maxLagNanos.get());
+            log.info("时间轮负载测试 - 任务数: {}, 提交耗时: {} ms, 最大延迟: {} ms",
+                    TIMERS, TimeUnit.NANOSECONDS.toMillis(scheduleNanos), maxLagMs);
+
+            assertEquals(0, early.get(), "有任务提前执行");
+            assertEquals(TIMERS - CANCELLED, fired.get());
+            assertEquals(0, firedCancelled.get(), "已取消的任务被执行");
+            assertEquals(0, wheel.size());
+            assertTrue(maxLagMs <= MAX_LAG_MS, "最大延迟过大: " + maxLagMs + "ms");
+        } finally {
+            wheel.stop();
+        }
+    }
+}
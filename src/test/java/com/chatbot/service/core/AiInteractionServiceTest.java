@@ -0,0 +1,148 @@
+package com.chatbot.service.core;
+
+import com.chatbot.model.entity.AiCharacter;
+import com.chatbot.model.entity.Message;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.metadata.ChatResponseMetadata;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 用本地桩模型驱动 AiInteractionService，校验Prompt缓存断点与前缀稳定性
+ *
+ * <p>桩模型记录收到的每个Prompt，并按需在响应元数据中回传缓存token数。
+ * 相邻两轮的Prompt在上一轮的断点之前（含）应逐条一致，新一轮只在末尾追加内容。</p>
+ * @author Administrator
+ */
+class AiInteractionServiceTest {
+
+    private StubChatModel chatModel;
+    private SimpleMeterRegistry meterRegistry;
+    private AiInteractionService aiInteractionService;
+    private AiCharacter character;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        AiContextBuilder contextBuilder = new AiContextBuilder();
+        ReflectionTestUtils.setField(contextBuilder, "systemPromptResource", new ClassPathResource("prompts/system-prompt.st"));
+        contextBuilder.init();
+        chatModel = new StubChatModel();
+        meterRegistry = new SimpleMeterRegistry();
+        aiInteractionService = new AiInteractionService(chatModel, contextBuilder, new AiUsageMetrics(meterRegistry));
+        character = AiCharacter.builder()
+                .id(1L)
+                .name("小林")
+                .age(24)
+                .relationship("朋友")
+                .personalityTags(List.of("温柔", "细心"))
+                .build();
+    }
+
+    @Test
+    void marksSystemPromptAndLastHistoryMessageAsBreakpoints() {
+        List<String> reply = aiInteractionService.chat(character, null, history("在吗", "在的"), "今天好累");
+
+        assertEquals(List.of("辛苦啦"), reply);
+        List<org.springframework.ai.chat.messages.Message> messages = chatModel.prompts.get(0).getInstructions();
+        assertEquals(4, messages.size());
+        assertEquals(MessageType.SYSTEM, messages.get(0).getMessageType());
+        assertEquals(true, messages.get(0).getMetadata().get(AiContextBuilder.CACHE_BREAKPOINT));
+        assertNull(messages.get(1).getMetadata().get(AiContextBuilder.CACHE_BREAKPOINT));
+        assertEquals(true, messages.get(2).getMetadata().get(AiContextBuilder.CACHE_BREAKPOINT));
+        assertNull(messages.get(3).getMetadata().get(AiContextBuilder.CACHE_BREAKPOINT));
+    }
+
+    @Test
+    void keepsPrefixStableAcrossTurns() {
+        aiInteractionService.chat(character, "用户最近在准备考试", history("在吗", "在的"), "今天好累");
+        aiInteractionService.chat(character, "用户最近在准备考试", history("在吗", "在的", "今天好累", "辛苦啦"), "想早点睡");
+
+        List<org.springframework.ai.chat.messages.Message> first = chatModel.prompts.get(0).getInstructions();
+        List<org.springframework.ai.chat.messages.Message> second = chatModel.prompts.get(1).getInstructions();
+        int breakpoint = lastBreakpoint(first);
+        assertEquals(3, breakpoint);
+        for (int i = 0; i <= breakpoint; i++) {
+            assertEquals(first.get(i).getMessageType(), second.get(i).getMessageType());
+            assertEquals(first.get(i).getText(), second.get(i).getText());
+        }
+        // 角色设定直接复用缓存的消息对象
+        assertSame(first.get(0), second.get(0));
+        assertEquals(first.get(4).getText(), second.get(4).getText());
+        assertEquals(lastBreakpoint(second), second.size() - 2);
+    }
+
+    @Test
+    void recordsCacheHitsReportedByTheModel() {
+        chatModel.metadata = Map.of(AiUsageMetrics.CACHE_READ_INPUT_TOKENS, 512, AiUsageMetrics.CACHE_CREATION_INPUT_TOKENS, 0);
+
+        aiInteractionService.chat(character, null, history("在吗", "在的"), "今天好累");
+
+        assertEquals(1.0, meterRegistry.get("chatbot.ai.prompt.cache").tag("result", "hit").counter().count());
+        assertEquals(512.0, meterRegistry.get("chatbot.ai.tokens").tag("type", "cache_read").counter().count());
+    }
+
+    @Test
+    void skipsCacheMetricsWhenTheModelReportsNone() {
+        aiInteractionService.chat(character, null, history("在吗", "在的"), "今天好累");
+
+        Counter hit = meterRegistry.find("chatbot.ai.prompt.cache").counter();
+        assertNull(hit);
+        assertTrue(meterRegistry.find("chatbot.ai.tokens").tag("type", "cache_read").counters().isEmpty());
+    }
+
+    private static List<Message> history(String... contents) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < contents.length; i++) {
+            messages.add(Message.builder()
+                    .senderType(i % 2 == 0 ? Message.SenderType.USER : Message.SenderType.AI)
+                    .content(contents[i])
+                    .build());
+        }
+        return messages;
+    }
+
+    private static int lastBreakpoint(List<org.springframework.ai.chat.messages.Message> messages) {
+        int index = -1;
+        for (int i = 0; i < messages.size(); i++) {
+            if (Boolean.TRUE.equals(messages.get(i).getMetadata().get(AiContextBuilder.CACHE_BREAKPOINT))) {
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 记录Prompt并返回固定回复的本地桩模型
+     */
+    private static class StubChatModel implements ChatModel {
+
+        private final List<Prompt> prompts = new ArrayList<>();
+        private Map<String, Object> metadata = Map.of();
+
+        @Override
+        public ChatResponse call(Prompt prompt) {
+            prompts.add(prompt);
+            ChatResponseMetadata.Builder builder = ChatResponseMetadata.builder();
+            metadata.forEach(builder::keyValue);
+            return new ChatResponse(List.of(new Generation(new AssistantMessage("辛苦啦"))), builder.build());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.chatbot.service.core;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 回复分段队列的分片key与认领结果解析
+ *
+ * <p>StringRedisTemplate 用Mockito模拟，脚本按传入的key返回预设结果，校验每个会话的key落在同一分片、
+ * 认领轮询全部分片，以及认领结果中的Redis时间被用作滞后计算的基准。</p>
+ * @author Administrator
+ */
+class RedisDeliveryQueueTest {
+
+    private RedisDeliveryQueue deliveryQueue;
+    private StringRedisTemplate stringRedisTemplate;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        deliveryQueue = new RedisDeliveryQueue();
+        ReflectionTestUtils.setField(deliveryQueue, "stringRedisTemplate", stringRedisTemplate);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void conversationKeysShareOneShardTag() {
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any(Object[].class)))
+                .thenReturn(Arrays.asList(100L, 100L));
+
+        deliveryQueue.enqueue(35L, List.of("s1"), List.of(100L), List.of("{}"));
+        deliveryQueue.enqueue(36L, List.of("s2"), List.of(100L), List.of("{}"));
+
+        ArgumentCaptor<List<String>> keys = ArgumentCaptor.forClass(List.class);
+        verify(stringRedisTemplate, times(2)).execute(any(RedisScript.class), keys.capture(), any(Object[].class));
+        assertEquals(Arrays.asList(
+                "{chatbot:delivery:3}:schedule",
+                "{chatbot:delivery:3}:segments",
+                "{chatbot:delivery:3}:conversation:35",
+                "{chatbot:delivery:3}:tail:35"), keys.getAllValues().get(0));
+        assertEquals("{chatbot:delivery:4}:schedule", keys.getAllValues().get(1).get(0));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void claimPollsEveryShardWhenNothingIsDue() {
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any(Object[].class)))
+                .thenReturn(new ArrayList<>(List.of(1000L)));
+
+        assertTrue(deliveryQueue.claim(10, 5000).isEmpty());
+
+        ArgumentCaptor<List<String>> keys = ArgumentCaptor.forClass(List.class);
+        verify(stringRedisTemplate, times(RedisDeliveryQueue.SHARDS))
+                .execute(any(RedisScript.class), keys.capture(), any(Object[].class));
+        Set<String> scheduleKeys = new HashSet<>();
+        for (List<String> shardKeys : keys.getAllValues()) {
+            assertEquals(2, shardKeys.size());
+            scheduleKeys.add(shardKeys.get(0));
+        }
+        assertEquals(RedisDeliveryQueue.SHARDS, scheduleKeys.size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void claimParsesSegmentsAndStopsWhenBatchIsFull() {
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any(Object[].class))).thenAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(1);
+            if ("{chatbot:delivery:2}:schedule".equals(keys.get(0))) {
+                return Arrays.asList(5000L,
+                        "s1", "4200", "{\"conversationId\":18,\"delayMs\":200}",
+                        "s2", "4900", "{\"conversationId\":34,\"delayMs\":300}");
+            }
+            return new ArrayList<>(List.of(5000L));
+        });
+
+        List<RedisDeliveryQueue.ClaimedSegment> claimed = deliveryQueue.claim(2, 5000);
+
+        assertEquals(2, claimed.size());
+        RedisDeliveryQueue.ClaimedSegment first = claimed.get(0);
+        assertEquals("s1", first.getSegmentId());
+        assertEquals(18L, first.getConversationId());
+        assertEquals(4200L, first.getDueAt());
+        assertEquals(5000L, first.getClaimedAt());
+        assertEquals(34L, claimed.get(1).getConversationId());
+        // 第一次认领从分片0开始，分片2凑满一批后不再访问后续分片
+        verify(stringRedisTemplate, times(3)).execute(any(RedisScript.class), anyList(), any(Object[].class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void claimRotatesStartingShard() {
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any(Object[].class))).thenAnswer(invocation -> {
+            List<String> keys = invocation.getArgument(1);
+            return Arrays.asList(5000L, "s-" + keys.get(0), "4000", "{\"conversationId\":1,\"delayMs\":0}");
+        });
+
+        String firstShard = deliveryQueue.claim(1, 5000).get(0).getSegmentId();
+        String secondShard = deliveryQueue.claim(1, 5000).get(0).getSegmentId();
+
+        assertEquals("s-{chatbot:delivery:0}:schedule", firstShard);
+        assertNotEquals(firstShard, secondShard);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void isPendingReadsTheConversationShard() {
+        HashOperations<String, Object, Object> hashOperations = mock(HashOperations.class);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOperations);
+        when(hashOperations.hasKey("{chatbot:delivery:15}:segments", "s1")).thenReturn(true);
+
+        assertTrue(deliveryQueue.isPending(-1L, "s1"));
+    }
+}
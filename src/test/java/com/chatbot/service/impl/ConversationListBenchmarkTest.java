@@ -0,0 +1,160 @@
+package com.chatbot.service.impl;
+
+import com.chatbot.common.result.PageResult;
+import com.chatbot.common.util.UserContext;
+import com.chatbot.mapper.ConversationMapper;
+import com.chatbot.model.entity.Conversation;
+import com.chatbot.model.entity.Message;
+import com.chatbot.model.vo.ConversationVO;
+import com.chatbot.service.core.ConversationActivityTracker;
+import com.chatbot.service.core.ConversationIndex;
+import com.chatbot.service.core.EntityCache;
+import com.github.pagehelper.Page;
+import com.github.pagehelper.PageHelper;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * 会话列表的查询次数与耗时：每个用户1、100、1000个会话
+ *
+ * <p>最后一条消息预览随会话一起查出，列表（第一页，每页 {@value #PAGE_SIZE} 条）无论用户有多少会话都只访问一次数据源：
+ * 走Redis索引时只读一次索引，索引不可用回退到数据库时只执行一次 selectByUserId，不再逐个查询消息表。
+ * 数据源用Mockito模拟，耗时只反映服务层本身的开销，写入日志供对比。</p>
+ * @author Administrator
+ */
+@Slf4j
+class ConversationListBenchmarkTest {
+
+    private static final Long USER_ID = 1L;
+    private static final int ROUNDS = 200;
+
+    /**
+     * 与 ConversationServiceImpl 的单页上限一致
+     */
+    private static final int PAGE_SIZE = 100;
+
+    private ConversationServiceImpl conversationService;
+    private ConversationMapper conversationMapper;
+    private ConversationIndex conversationIndex;
+    private EntityCache entityCache;
+
+    @BeforeEach
+    void setUp() {
+        conversationMapper = mock(ConversationMapper.class);
+        conversationIndex = mock(ConversationIndex.class);
+        entityCache = mock(EntityCache.class);
+        conversationService = new ConversationServiceImpl();
+        ReflectionTestUtils.setField(conversationService, "conversationMapper", conversationMapper);
+        ReflectionTestUtils.setField(conversationService, "conversationIndex", conversationIndex);
+        ReflectionTestUtils.setField(conversationService, "entityCache", entityCache);
+        ReflectionTestUtils.setField(conversationService, "conversationActivityTracker", new ConversationActivityTracker());
+        UserContext.setUserId(USER_ID);
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserContext.clear();
+        PageHelper.clearPage();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 100, 1000})
+    void indexPathReadsTheIndexOnce(int conversations) {
+        List<Conversation> all = conversations(conversations);
+        when(conversationIndex.page(eq(USER_ID), anyLong(), anyInt())).thenAnswer(invocation -> {
+            int offset = (int) (long) invocation.getArgument(1, Long.class);
+            int size = invocation.getArgument(2, Integer.class);
+            return new ConversationIndex.Page(all.size(),
+                    new ArrayList<>(all.subList(offset, Math.min(offset + size, all.size()))));
+        });
+
+        PageResult result = conversationService.list(1, PAGE_SIZE);
+        assertPage(result, conversations);
+        verify(conversationIndex, times(1)).page(eq(USER_ID), anyLong(), anyInt());
+        verifyNoMoreInteractions(conversationIndex);
+        verifyNoInteractions(conversationMapper, entityCache);
+
+        log.info("会话列表（Redis索引） - 会话数: {}, 每次 {} µs", conversations, averageMicros());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 100, 1000})
+    void databaseFallbackIssuesASingleQuery(int conversations) {
+        List<Conversation> all = conversations(conversations);
+        when(conversationIndex.page(eq(USER_ID), anyLong(), anyInt()))
+                .thenThrow(new RedisConnectionFailureException("Redis不可用"));
+        when(conversationMapper.selectByUserId(USER_ID)).thenAnswer(invocation -> {
+            // 模拟分页插件：按调用方设置的分页参数截取并清除
+            Page<Conversation> page = PageHelper.getLocalPage();
+            PageHelper.clearPage();
+            page.addAll(all.subList(0, Math.min(page.getPageSize(), all.size())));
+            page.setTotal(all.size());
+            return page;
+        });
+
+        PageResult result = conversationService.list(1, PAGE_SIZE);
+        assertPage(result, conversations);
+        verify(conversationMapper, times(1)).selectByUserId(USER_ID);
+        verifyNoMoreInteractions(conversationMapper);
+        verifyNoInteractions(entityCache);
+
+        log.info("会话列表（数据库回退） - 会话数: {}, 每次 {} µs", conversations, averageMicros());
+    }
+
+    private long averageMicros() {
+        clearInvocations(conversationMapper, conversationIndex);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            conversationService.list(1, PAGE_SIZE);
+        }
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / ROUNDS;
+    }
+
+    private static void assertPage(PageResult result, int conversations) {
+        assertEquals(conversations, result.getTotal().longValue());
+        assertEquals(Math.min(conversations, PAGE_SIZE), result.getRecords().size());
+        ConversationVO first = (ConversationVO) result.getRecords().get(0);
+        assertEquals("消息0", first.getLastMessage());
+    }
+
+    private static List<Conversation> conversations(int count) {
+        LocalDateTime now = LocalDateTime.now();
+        List<Conversation> conversations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Conversation conversation = new Conversation();
+            conversation.setId((long) i + 1);
+            conversation.setUserId(USER_ID);
+            conversation.setCharacterId((long) i + 1);
+            conversation.setIsPinned(false);
+            conversation.setLastMessage("消息" + i);
+            conversation.setLastMessageSenderType(Message.SenderType.USER);
+            conversation.setLastMessageTime(now.minusSeconds(i));
+            conversation.setCreatedAt(now.minusDays(1));
+            conversation.setUpdatedAt(now);
+            conversations.add(conversation);
+        }
+        return conversations;
+    }
+}